@@ -2,12 +2,43 @@
  * This file illustrates lab1.java from Lab1.
  */
 
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This program first reads a terrain image, path points text file, and elevations text file.
@@ -18,6 +49,21 @@ import java.util.List;
  * @author Michael Lee, ml3406@rit.edu
  */
 public class lab1 {
+    /**
+     * magic number ("L1MP") and format version of compiled terrain maps
+     */
+    static final int MAP_MAGIC = 0x4C314D50, MAP_VERSION = 1;
+
+    /**
+     * directions of adjacent pixels
+     */
+    static final int EAST = 0, WEST = 1, SOUTH = 2, NORTH = 3;
+
+    /**
+     * color of points and routes in output images
+     */
+    static final int PATH_COLOR = new Color(153, 48, 255).getRGB();
+
     /**
      * width and height in pixel
      */
@@ -29,39 +75,76 @@ public class lab1 {
     double dx, dy;
 
     /**
-     * input image
+     * input image (null until output() when the terrain comes from a compiled map)
      */
     BufferedImage img;
 
+    /**
+     * if terrain and elevations were loaded from a compiled map
+     */
+    boolean compiled;
+
+    /**
+     * tiles of a compiled map that is read on demand instead of all at once (null if it is in memory)
+     */
+    TiledGrid tiles;
+
+    /**
+     * the file name of the terrain image or compiled map
+     */
+    String terrainFile;
+
     /**
      * a list to store all points to visit
      */
     List<int[]> points;
 
     /**
-     * a 2D list to store elevations info
+     * a flat array to store elevations info (indexed by y * width + x)
+     */
+    float[] elevation;
+
+    /**
+     * a flat array to store the terrain class of every pixel (an index into classColor and classSpeed)
+     */
+    byte[] terrain;
+
+    /**
+     * RGB value and speed of every terrain class (one class per entry of terrainSpeed)
+     */
+    int[] classColor;
+    double[] classSpeed;
+
+    /**
+     * travel time from every pixel to its east, west, south, and north adjacent pixel
      */
-    List<List<Double>> elevations;
+    float[] eastCost, westCost, southCost, northCost;
 
     /**
-     * a 2D list to store all colors of the input image (convenient to calculate RGB)
+     * the optimal path pixel by pixel (linear indices; the first pathSize entries are used)
      */
-    List<List<Color>> colors;
+    int[] path;
+    int pathSize;
 
     /**
-     * a list to store the optimal path (pixel by pixel)
+     * the routes that make up the optimal path, in order (each from the visiting point back to the starting point)
      */
-    List<String> path;
+    List<int[]> pathLegs;
 
     /**
-     * a 2D list to store all pixels' heuristic values
+     * file for the route as a binary polyline or as GeoJSON (null if it is not written; see RouteWriter)
      */
-    List<List<Double>> h;
+    String routeFile;
 
     /**
-     * a map to store pixels' g(n)
+     * if output() draws and writes the image
      */
-    Map<String, Double> g;
+    boolean drawImage = true;
+
+    /**
+     * colors of all pixels of the terrain without routes (packed RGB, created when first drawn on)
+     */
+    int[] basePixels;
 
     /**
      * a map to store all types of terrain speed
@@ -69,60 +152,118 @@ public class lab1 {
     Map<String, Double> terrainSpeed;
 
     /**
-     * a map to store pixels' predecessors (for backtracking the optimal path)
+     * name of the heuristic used during A* search (see Heuristic.create)
+     */
+    String heuristicMode;
+
+    /**
+     * number of threads solving legs (pairs of consecutive points) in parallel; 1 means sequentially
+     */
+    int threads;
+
+    /**
+     * primitive state of the A* search (g(n), predecessors, visited pixels, and the priority queue)
+     */
+    SearchState search;
+
+    /**
+     * search state of every thread solving legs in parallel (legs only share the read-only terrain)
+     */
+    ThreadLocal<SearchState> threadSearch;
+
+    /**
+     * if legs are searched from both ends at the same time
+     */
+    boolean bidirectional;
+
+    /**
+     * search state of the backward half of bidirectional searches (one per thread, allocated when first used)
+     */
+    ThreadLocal<SearchState> threadBackward;
+
+    /**
+     * kind of open list of the search states (see OpenList.KINDS) and bucket width of the bucket queue (seconds)
+     */
+    String openList = "binary";
+    double bucketWidth = 1.0;
+
+    /**
+     * abstraction for hierarchical path-finding (null to search every leg pixel by pixel)
+     */
+    Hierarchy hierarchy;
+
+    /**
+     * landmark distance tables of the landmarks heuristic (null if another heuristic is used)
+     */
+    Landmarks landmarks;
+
+    /**
+     * version of terrain, elevations, and speeds (incremented by every change)
+     */
+    long version;
+
+    /**
+     * results of solved legs (null if legs are always searched)
+     */
+    LegCache cache;
+
+    /**
+     * initial heuristic weight of the anytime search (0 for the exact search) and the time budget
+     * of a whole route in nanoseconds (0 for none)
      */
-    Map<String, String> predecessors;
+    double weight;
+    long deadline;
 
     /**
-     * a set to store visited pixel during A* search
+     * the factor by which the time cost of the last route may exceed the optimal one (1 if it is optimal)
      */
-    Set<String> visited;
+    double bound = 1.0;
 
     /**
-     * a priority queue used during A* search
+     * lock that lets routes be searched at the same time while changes wait for them (used by the server)
      */
-    PriorityQueue<Object[]> pq;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * if expanded pixels and latency of every leg should be reported (compared with flat A* search)
+     */
+    boolean report;
+
+    /**
+     * file for the JSON statistics of the legs of a route (null if they are not written)
+     */
+    String statsFile;
+
+    /**
+     * how travel time tables and sweeps are calculated: "rows" (row kernels), "scalar" (pixel by
+     * pixel), or "check" (both, comparing the results bit by bit)
+     */
+    String kernels = "rows";
 
     /**
      * The constructor initializes some important fields.
      *
-     * @param terrain_img the file name of the input image
+     * @param terrain_img the file name of the input image or of a compiled map (see compile())
      */
     public lab1(String terrain_img) {
-        // hard-coded width and height
-        x = 395;
-        y = 500;
-
-        // hard-coded real-world pixel size
-        dx = 10.29;
-        dy = 7.75;
+        this(terrain_img, 0, 256);
+    }
 
-        elevations = new ArrayList<>();
+    /**
+     * The constructor initializes some important fields. A compiled map is read in tiles if a
+     * tile cache budget is given or if the whole map would not fit into the heap.
+     *
+     * @param terrain_img the file name of the input image or of a compiled map (see compile())
+     * @param tileBudget  memory budget of the tile cache in bytes (0 to decide by the map size)
+     * @param tileSize    width and height of a tile in pixels (a power of two)
+     */
+    public lab1(String terrain_img, long tileBudget, int tileSize) {
+        terrainFile = terrain_img;
         points = new ArrayList<>();
-        colors = new ArrayList<>();
-        path = new ArrayList<>();
-        h = new ArrayList<>();
-        g = new HashMap<>();
-        predecessors = new HashMap<>();
-        visited = new HashSet<>();
-        pq = new PriorityQueue<>(1, new SortByHeuristic());
-
-        // read image
-        try {
-            img = ImageIO.read(new File(terrain_img));
-        } catch (IOException e) {
-            System.out.println("File not found or some other errors.");
-        }
-
-        for (int i = 0; i < y; i++) {
-            elevations.add(new ArrayList<>());
-            colors.add(new ArrayList<>());
-            h.add(new ArrayList<>());
-            for (int j = 0; j < x; j++) {
-                colors.get(i).add(new Color(img.getRGB(j, i)));
-                h.get(i).add(10000000.0);
-            }
-        }
+        path = new int[1024];
+        pathLegs = new ArrayList<>();
+        heuristicMode = "euclidean";
+        threads = 1;
 
         terrainSpeed = new HashMap<>();
         // hard-coded speeds (m/s) for every terrain
@@ -136,356 +277,5161 @@ public class lab1 {
         terrainSpeed.put("71 51 3", 3.5);
         terrainSpeed.put("0 0 0", 3.0);
         terrainSpeed.put("205 0 101", 0.0);
+
+        classColor = new int[terrainSpeed.size()];
+        classSpeed = new double[terrainSpeed.size()];
+        int c = 0;
+        for (Map.Entry<String, Double> entry : terrainSpeed.entrySet()) {
+            String[] rgb = entry.getKey().split(" ");
+            classColor[c] = new Color(Integer.parseInt(rgb[0]), Integer.parseInt(rgb[1]), Integer.parseInt(rgb[2])).getRGB();
+            classSpeed[c++] = entry.getValue();
+        }
+
+        if (isCompiledMap(terrain_img)) {
+            try {
+                load(terrain_img, tileBudget, tileSize);
+            } catch (IOException e) {
+                System.out.println("File not found or some other errors: " + e.getMessage());
+                System.exit(-1);
+            }
+        } else {
+            // read image
+            try {
+                img = ImageIO.read(new File(terrain_img));
+            } catch (IOException e) {
+                System.out.println("File not found or some other errors.");
+                System.exit(-1);
+            }
+
+            // width and height of the image, real-world pixel size from its world file (if any)
+            x = img.getWidth();
+            y = img.getHeight();
+            readWorldFile(terrain_img);
+            classify();
+            elevation = new float[x * y];
+        }
+
+        search = newSearchState();
+        threadSearch = ThreadLocal.withInitial(this::newSearchState);
+        threadBackward = ThreadLocal.withInitial(this::newSearchState);
     }
 
     /**
-     * This method deals with input tasks, including reading elevation and path information.
+     * This method allocates the state of a search with the configured open list, paged if the map
+     * is read in tiles.
      *
-     * @param elevation_file a text file with elevation information
-     * @param path_file      a text file with path (points) information
+     * @return the search state
      */
-    public void input(String elevation_file, String path_file) {
-        // read and store elevations
-        try (BufferedReader input = new BufferedReader(new FileReader(elevation_file))) {
-            String line;
-            String[] splitLine;
-            int lines = 0;
-            while ((line = input.readLine()) != null) {
-                line = line.trim();
-                splitLine = line.split("\\s+");
-                for (int i = 0; i < x; i++) {
-                    elevations.get(lines).add(Double.parseDouble(splitLine[i]));
-                }
-                lines++;
-            }
-        } catch (IOException e) {
-            System.out.println("File not found or some other errors.");
-        }
+    public SearchState newSearchState() {
+        SearchState state = tiles != null ? new PagedSearchState(x, y, 1 << tiles.shift, tiles.budget) : new SearchState(x * y);
+        state.queue = OpenList.create(openList, x * y, bucketWidth);
+        return state;
+    }
 
-        // read and store path (sequence of points)
-        try (BufferedReader input = new BufferedReader(new FileReader(path_file))) {
-            String line;
-            String[] splitLine;
-            while ((line = input.readLine()) != null) {
-                splitLine = line.split(" ");
-                points.add(new int[]{Integer.parseInt(splitLine[0]), Integer.parseInt(splitLine[1])});
+    /**
+     * This method reads the real-world pixel size from the world file of an image (e.g. terrain.pgw
+     * next to terrain.png), whose first line is the pixel width and fourth line the (negative) pixel
+     * height. Without a world file the pixel size of the park map is used.
+     *
+     * @param terrain_img the file name of the input image
+     */
+    public void readWorldFile(String terrain_img) {
+        dx = 10.29;
+        dy = 7.75;
+        String base = terrain_img.contains(".") ? terrain_img.substring(0, terrain_img.lastIndexOf('.')) : terrain_img;
+        for (String extension : new String[]{".pgw", ".pngw", ".wld"}) {
+            File world = new File(base + extension);
+            if (!world.isFile()) continue;
+            try (BufferedReader input = new BufferedReader(new FileReader(world))) {
+                List<String> lines = new ArrayList<>();
+                String line;
+                while ((line = input.readLine()) != null) lines.add(line.trim());
+                dx = Math.abs(Double.parseDouble(lines.get(0)));
+                dy = Math.abs(Double.parseDouble(lines.get(3)));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Invalid world file " + world + ", using the default pixel size.");
             }
-        } catch (IOException e) {
-            System.out.println("File not found or some other errors.");
+            return;
         }
     }
 
     /**
-     * This method executes A* search algorithm.
+     * This method assigns every pixel of the input image to a terrain class, so that the
+     * terrain speed of a pixel can be looked up without going through its color.
      */
-    public void aStar() {
-        int xCurrent, yCurrent, xVisit, yVisit;
-        // perform A* search for every two points from path file
-        for (int i = 0; i < points.size() - 1; i++) {
-            xCurrent = points.get(i)[0];
-            yCurrent = points.get(i)[1];
-            xVisit = points.get(i + 1)[0];
-            yVisit = points.get(i + 1)[1];
-
-            // reset all heuristic values
+    public void classify() {
+        terrain = new byte[x * y];
+        int[] row = new int[x];
+        int last = 0, rgb;
+        for (int i = 0; i < y; i++) {
+            readRow(img, i, row, 0);
             for (int j = 0; j < x; j++) {
-                for (int k = 0; k < y; k++) {
-                    h.get(k).set(j, 10000000.0);
-                }
-            }
-
-            // h(n) of the visiting point is 0
-            h.get(yVisit).set(xVisit, 0.0);
-
-            // calculate heuristic values for every point (pixel)
-            heuristic();
-
-            // add starting point with it's f(n) value to the priority queue
-            pq.add(new Object[]{xCurrent, yCurrent, h.get(yCurrent).get(xCurrent)});
-
-            // g(n) of the starting point is 0
-            g.put(xCurrent + " " + yCurrent, 0.0);
-
-            /* although the starting point has no predecessor, adding
-               itself as its predecessor is convenient for back tracking */
-            predecessors.put(xCurrent + " " + yCurrent, xCurrent + " " + yCurrent);
-
-            // some auxiliary variables for A* search
-            Object[] temp;
-            int xTemp, yTemp;
-            double gParent, g1, g2, f;
-
-            // keep searching until reaching the visiting point
-            while (pq.size() != 0) {
-                temp = pq.poll();
-                xTemp = (int) temp[0];
-                yTemp = (int) temp[1];
-                visited.add(xTemp + " " + yTemp);
-
-                // search east adjacent pixel
-                if (xTemp + 1 < x && !visited.contains((xTemp + 1) + " " + yTemp)) {
-                    gParent = g.get(xTemp + " " + yTemp);
-                    g1 = gParent + cost(xTemp, yTemp, xTemp + 1, yTemp);
-                    f = g1 + h.get(yTemp).get(xTemp + 1);
-
-                    // already in the priority queue, but might be updated
-                    if (predecessors.containsKey((xTemp + 1) + " " + yTemp)) {
-                        g2 = g.get((xTemp + 1) + " " + yTemp);
-                        if (g2 > g1) {
-                            predecessors.put((xTemp + 1) + " " + yTemp, xTemp + " " + yTemp);
-                            g.put((xTemp + 1) + " " + yTemp, g1);
-                            pq.add(new Object[]{xTemp + 1, yTemp, f});
-                        }
-                    } else {
-                        predecessors.put((xTemp + 1) + " " + yTemp, xTemp + " " + yTemp);
-                        g.put((xTemp + 1) + " " + yTemp, g1);
-                        pq.add(new Object[]{xTemp + 1, yTemp, f});
-                    }
-                }
-
-                // search west adjacent pixel
-                if (xTemp - 1 >= 0 && !visited.contains((xTemp - 1) + " " + yTemp)) {
-                    gParent = g.get(xTemp + " " + yTemp);
-                    g1 = gParent + cost(xTemp, yTemp, xTemp - 1, yTemp);
-                    f = g1 + h.get(yTemp).get(xTemp - 1);
-                    if (predecessors.containsKey((xTemp - 1) + " " + yTemp)) {
-                        g2 = g.get((xTemp - 1) + " " + yTemp);
-                        if (g2 > g1) {
-                            predecessors.put((xTemp - 1) + " " + yTemp, xTemp + " " + yTemp);
-                            g.put((xTemp - 1) + " " + yTemp, g1);
-                            pq.add(new Object[]{xTemp - 1, yTemp, f});
-                        }
-                    } else {
-                        predecessors.put((xTemp - 1) + " " + yTemp, xTemp + " " + yTemp);
-                        g.put((xTemp - 1) + " " + yTemp, g1);
-                        pq.add(new Object[]{xTemp - 1, yTemp, f});
-                    }
-
-                }
-
-                // search south adjacent pixel
-                if (yTemp + 1 < y && !visited.contains(xTemp + " " + (yTemp + 1))) {
-                    gParent = g.get(xTemp + " " + yTemp);
-                    g1 = gParent + cost(xTemp, yTemp, xTemp, yTemp + 1);
-                    f = g1 + h.get(yTemp + 1).get(xTemp);
-                    if (predecessors.containsKey(xTemp + " " + (yTemp + 1))) {
-                        g2 = g.get(xTemp + " " + (yTemp + 1));
-                        if (g2 > g1) {
-                            predecessors.put(xTemp + " " + (yTemp + 1), xTemp + " " + yTemp);
-                            g.put(xTemp + " " + (yTemp + 1), g1);
-                            pq.add(new Object[]{xTemp, yTemp + 1, f});
-                        }
-                    } else {
-                        predecessors.put(xTemp + " " + (yTemp + 1), xTemp + " " + yTemp);
-                        g.put(xTemp + " " + (yTemp + 1), g1);
-                        pq.add(new Object[]{xTemp, yTemp + 1, f});
-                    }
-                }
-
-                // search north adjacent pixel
-                if (yTemp - 1 >= 0 && !visited.contains(xTemp + " " + (yTemp - 1))) {
-                    gParent = g.get(xTemp + " " + yTemp);
-                    g1 = gParent + cost(xTemp, yTemp, xTemp, yTemp - 1);
-                    f = g1 + h.get(yTemp - 1).get(xTemp);
-                    if (predecessors.containsKey(xTemp + " " + (yTemp - 1))) {
-                        g2 = g.get(xTemp + " " + (yTemp - 1));
-                        if (g2 > g1) {
-                            predecessors.put(xTemp + " " + (yTemp - 1), xTemp + " " + yTemp);
-                            g.put(xTemp + " " + (yTemp - 1), g1);
-                            pq.add(new Object[]{xTemp, yTemp - 1, f});
-                        }
-                    } else {
-                        predecessors.put(xTemp + " " + (yTemp - 1), xTemp + " " + yTemp);
-                        g.put(xTemp + " " + (yTemp - 1), g1);
-                        pq.add(new Object[]{xTemp, yTemp - 1, f});
-                    }
-                }
-
-                // reach the visiting point
-                assert pq.peek() != null;
-                if ((int) pq.peek()[0] == xVisit && (int) pq.peek()[1] == yVisit) {
-                    predecessors.put(pq.peek()[0] + " " + pq.peek()[1], predecessors.get(xVisit + " " + yVisit));
-                    visited.clear();
-                    pq.clear();
-                    g.clear();
-                    break;
-                }
+                // neighboring pixels mostly share the same terrain
+                rgb = row[j] | 0xFF000000;
+                if (classColor[last] != rgb) last = terrainClass(rgb);
+                terrain[index(j, i)] = (byte) last;
             }
-            // back track and record the optimal path
-            String aString = xVisit + " " + yVisit;
-            do {
-                path.add(aString);
-                aString = predecessors.get(aString);
-            } while (!aString.equals(xCurrent + " " + yCurrent));
-            path.add(aString);
-            predecessors.clear();
         }
     }
 
     /**
-     * This method calculates the time cost while traveling from one pixel to one of its adjacent
-     * pixels according to terrains and elevations
+     * This method reads the colors of one row of an image. Images with packed int pixels or with
+     * interleaved 8-bit RGB(A) samples (as PNG files are mostly decoded) are read straight from
+     * their data buffer; others through getRGB() for the whole row.
      *
-     * @param xStart x-coordinate the starting pixel
-     * @param yStart y-coordinate the starting pixel
-     * @param xVisit x-coordinate the visiting pixel
-     * @param yVisit y-coordinate the visiting pixel
-     * @return the time cost
+     * @param image  the image
+     * @param row    the row
+     * @param rgb    the colors (packed RGB; the alpha byte is undefined)
+     * @param offset where the colors of the row start in rgb
      */
-    public double cost(int xStart, int yStart, int xVisit, int yVisit) {
-        // time cost and up/downhill factor
-        double t, hill;
-        double altitude_difference = elevations.get(yVisit).get(xVisit) - elevations.get(yStart).get(xStart);
-
-        // determine terrain speed according to r, g, and b values
-        int red = colors.get(yStart).get(xStart).getRed();
-        int green = colors.get(yStart).get(xStart).getGreen();
-        int blue = colors.get(yStart).get(xStart).getBlue();
-        double speed = terrainSpeed.get(red + " " + green + " " + blue);
-
-        // impassible terrain or too high (too cold) for human (given them a high cost so that A* won't pick them)
-        if (speed == 0.0 || elevations.get(yVisit).get(xVisit) >= 3000.0) t = 1000000.0;
-        else if (xStart == xVisit && yStart == yVisit) t = 0.0;
-        else {
-            if (xStart == xVisit) {
-
-                // 30-degree or more downhill => 20% speed up; 30-degree or more uphill => 20% speed loss
-                if (altitude_difference >= dy / Math.sqrt(3)) hill = -0.2;
-                else if (altitude_difference <= -dy / Math.sqrt(3)) hill = 0.2;
-                else hill = 0.0;
-                if (altitude_difference >= dy / Math.sqrt(2)) t = 1000000.0;
-                else t = dy / (speed * (1.0 + hill));
-            } else {
-                if (altitude_difference >= dx / Math.sqrt(3)) hill = -0.2;
-                else if (altitude_difference <= -dx / Math.sqrt(3)) hill = 0.2;
-                else hill = 0.0;
-                if (altitude_difference >= dx / Math.sqrt(2)) t = 1000000.0;
-                else t = dx / (speed * (1.0 + hill));
+    static void readRow(BufferedImage image, int row, int[] rgb, int offset) {
+        WritableRaster raster = image.getRaster();
+        int width = image.getWidth();
+        boolean untranslated = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+        if (untranslated && raster.getDataBuffer() instanceof DataBufferInt buffer
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel model
+                && (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+            System.arraycopy(buffer.getData(), buffer.getOffset() + row * model.getScanlineStride(), rgb, offset, width);
+        } else if (untranslated && raster.getDataBuffer() instanceof DataBufferByte buffer
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel model
+                && image.getColorModel() instanceof ComponentColorModel colors && colors.getColorSpace().isCS_sRGB()
+                && !colors.isAlphaPremultiplied() && model.getNumBands() >= 3 && colors.getComponentSize(0) == 8) {
+            byte[] data = buffer.getData();
+            int[] bands = model.getBandOffsets();
+            int stride = model.getPixelStride(), start = buffer.getOffset() + row * model.getScanlineStride();
+            for (int j = 0, k = start; j < width; j++, k += stride) {
+                rgb[offset + j] = (data[k + bands[0]] & 0xFF) << 16 | (data[k + bands[1]] & 0xFF) << 8 | data[k + bands[2]] & 0xFF;
             }
-        }
-        return t;
+        } else image.getRGB(0, row, width, 1, rgb, offset, width);
     }
 
     /**
-     * This method calculates heuristic values of all points before every A* search.
-     * It keeps scanning for checking if there a better heuristic value for every
-     * point from their adjacent points (4 directions) until there is no change in
-     * a single scan.
+     * This method finds the terrain class of a color.
+     *
+     * @param rgb the color (opaque RGB value)
+     * @return the terrain class
      */
-    public void heuristic() {
-        boolean d = true, n = true, e = true, s = true, w = true;
-        while (d) {
-            d = false;
-            for (int i = 0; i < x; i++) {
-                for (int j = 0; j < y; j++) {
-                    // from east
-                    if (i + 1 < x) {
-                        if (h.get(j).get(i + 1) + cost(i, j, i + 1, j) < h.get(j).get(i)) {
-                            h.get(j).set(i, h.get(j).get(i + 1) + cost(i, j, i + 1, j));
-                            e = true;
-                        } else e = false;
-                    }
+    public int terrainClass(int rgb) {
+        for (int c = 0; c < classColor.length; c++) {
+            if (classColor[c] == rgb) return c;
+        }
+        Color color = new Color(rgb);
+        throw new IllegalArgumentException("Unknown terrain color: " + color.getRed() + " " + color.getGreen() + " " + color.getBlue());
+    }
 
-                    // from west
-                    if (i - 1 >= 0) {
-                        if (h.get(j).get(i - 1) + cost(i, j, i - 1, j) < h.get(j).get(i)) {
-                            h.get(j).set(i, h.get(j).get(i - 1) + cost(i, j, i - 1, j));
-                            w = true;
-                        } else w = false;
-                    }
+    /**
+     * This method checks if a file is a compiled map by its magic number.
+     *
+     * @param file the file name
+     * @return if the file starts with the magic number of compiled maps
+     */
+    public static boolean isCompiledMap(String file) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAP_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-                    // from south
-                    if (j + 1 < y) {
-                        if (h.get(j + 1).get(i) + cost(i, j, i, j + 1) < h.get(j).get(i)) {
-                            h.get(j).set(i, h.get(j + 1).get(i) + cost(i, j, i, j + 1));
-                            s = true;
-                        } else s = false;
-                    }
+    /**
+     * This method writes terrain classes, elevations, and pixel size into a compiled map, so that
+     * later runs neither decode the image nor parse the elevation text file. The layout (big-endian):
+     * magic, version, width, height (ints), dx, dy (doubles), number of terrain classes followed by
+     * their RGB values (ints), one terrain class byte per pixel (row by row), padding to a multiple
+     * of 4 bytes, and one float elevation per pixel (row by row).
+     *
+     * @param map_file the file name of the compiled map
+     */
+    public void compile(String map_file) {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(classColor.length));
+        header.putInt(MAP_MAGIC).putInt(MAP_VERSION).putInt(x).putInt(y).putDouble(dx).putDouble(dy);
+        header.putInt(classColor.length);
+        for (int rgb : classColor) header.putInt(rgb);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(Path.of(map_file), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, header);
+            write(channel, ByteBuffer.wrap(terrain));
+            channel.position(elevationOffset(classColor.length));
 
-                    // from north
-                    if (j - 1 >= 0) {
-                        if (h.get(j - 1).get(i) + cost(i, j, i, j - 1) < h.get(j).get(i)) {
-                            h.get(j).set(i, h.get(j - 1).get(i) + cost(i, j, i, j - 1));
-                            n = true;
-                        } else n = false;
-                    }
-                }
+            // write elevations in chunks, so that large maps do not need a second copy in memory
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (int i = 0; i < elevation.length; i += chunk.capacity() / 4) {
+                chunk.clear();
+                chunk.asFloatBuffer().put(elevation, i, Math.min(chunk.capacity() / 4, elevation.length - i));
+                chunk.limit(4 * Math.min(chunk.capacity() / 4, elevation.length - i));
+                write(channel, chunk);
             }
-            if (!e && !w && !s && !n) break;
+        } catch (IOException e) {
+            System.out.println("IO errors.");
         }
     }
 
-    public void output(String output_img_name, String path_file) {
-        // some auxiliary variables
-        String[] aStringArray;
-        String aString = path_file.substring(0, path_file.indexOf("."));
-        int xTemp, yTemp;
-        // determine the path color
-        int r = 153, g = 48, b = 255, rgb = new Color(r, g, b).getRGB();
+    /**
+     * This method writes a whole buffer to a channel.
+     *
+     * @param channel the channel
+     * @param buffer  the buffer
+     * @throws IOException if writing fails
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
 
-        // give all points a bigger mark
-        for (int[] a : points) {
-            xTemp = a[0];
-            yTemp = a[1];
-            for (int i = xTemp - 2; i <= xTemp + 2; i++) {
-                for (int j = yTemp - 2; j <= yTemp + 2; j++) {
-                    if (i >= 0 && i < x && j >= 0 & j < y) {
-                        img.setRGB(i, j, rgb);
-                    }
-                }
+    /**
+     * This method reads a compiled map (see compile()), either by mapping it into memory or, if it
+     * is too large for the heap or a tile cache budget is given, by opening it for tiled access.
+     *
+     * @param map_file   the file name of the compiled map
+     * @param tileBudget memory budget of the tile cache in bytes (0 to decide by the map size)
+     * @param tileSize   width and height of a tile in pixels
+     * @throws IOException if the file cannot be read or is not a compiled map of this version
+     */
+    public void load(String map_file, long tileBudget, int tileSize) throws IOException {
+        FileChannel channel = FileChannel.open(Path.of(map_file), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(headerSize(0));
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < headerSize(0) || header.getInt() != MAP_MAGIC || header.getInt() != MAP_VERSION) {
+                throw new IOException("unsupported compiled map " + map_file);
             }
-        }
+            x = header.getInt();
+            y = header.getInt();
+            dx = header.getDouble();
+            dy = header.getDouble();
+            if ((long) x * y > Integer.MAX_VALUE) throw new IOException("more than 2^31 pixels in " + map_file);
 
-        // draw path and accumulate the total distance
-        double total_path_length = 0.0;
-        int xLast = -1, yLast = -1;
-        for (String s : path) {
-            aStringArray = s.split(" ");
-            xTemp = Integer.parseInt(aStringArray[0]);
-            yTemp = Integer.parseInt(aStringArray[1]);
-            img.setRGB(xTemp, yTemp, rgb);
-            if (xLast != -1) {
-                if (xTemp == xLast && Math.abs(yLast - yTemp) == 1) total_path_length += dy;
-                else if (yTemp == yLast && Math.abs(xLast - xTemp) == 1) total_path_length += dx;
+            // terrain classes of the file might be numbered differently from terrainSpeed
+            int classes = header.getInt();
+            ByteBuffer palette = ByteBuffer.allocate(4 * classes);
+            channel.read(palette, headerSize(0));
+            palette.flip();
+            byte[] remap = new byte[classes];
+            boolean identical = classes == classColor.length;
+            for (int c = 0; c < classes; c++) {
+                remap[c] = (byte) terrainClass(palette.getInt());
+                identical &= remap[c] == c;
             }
-            xLast = xTemp;
-            yLast = yTemp;
-        }
+            compiled = true;
 
-        // output image (.png) and distance (.txt and standard output)
-        try (BufferedWriter output = new BufferedWriter(new FileWriter("Distance.txt"))) {
-            System.out.println("The total distance of " + aString + " path is: " + total_path_length + " m.");
-            output.write("The total distance of " + aString + " path is: " + total_path_length + " m.");
-            ImageIO.write(img, "png", new File(output_img_name + ".png"));
-        } catch (IOException e) {
-            System.out.println("IO errors.");
+            // terrain, elevations, cost tables, and search state take about 41 bytes per pixel
+            if (tileBudget <= 0 && 41L * x * y > Runtime.getRuntime().maxMemory() / 4 * 3) {
+                tileBudget = Runtime.getRuntime().maxMemory() / 4;
+            }
+            if (tileBudget > 0) {
+                tiles = new TiledGrid(this, channel, headerSize(classes), elevationOffset(classes), remap, tileSize, tileBudget);
+                return;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerSize(classes), (long) x * y);
+            terrain = new byte[x * y];
+            buffer.get(terrain);
+            if (!identical) {
+                for (int i = 0; i < terrain.length; i++) terrain[i] = remap[terrain[i]];
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, elevationOffset(classes), 4L * x * y);
+            elevation = new float[x * y];
+            buffer.asFloatBuffer().get(elevation);
+        } finally {
+            if (tiles == null) channel.close();
         }
     }
 
     /**
-     * Main method.
-     *
-     * @param args command line arguments -- terrain-image elevation-file path-file output-image-filename
+     * @param classes number of terrain classes
+     * @return the position of the first terrain class byte in a compiled map
      */
-    public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Usage: lab1.java terrain-image elevation-file path-file output-image-filename");
-            System.exit(0);
-        }
-        lab1 l1 = new lab1(args[0]);
-        l1.input(args[1], args[2]);
-        l1.aStar();
-        l1.output(args[3], args[2]);
+    private static int headerSize(int classes) {
+        return 4 * 4 + 8 * 2 + 4 + 4 * classes;
     }
-}
 
-/**
- * an auxiliary class used as comparator for the priority queue (sorted by f(n))
- */
-class SortByHeuristic implements Comparator<Object[]> {
-    @Override
-    public int compare(Object[] o1, Object[] o2) {
-        double result = (double) o1[2] - (double) o2[2];
-        return Double.compare(result, 0.0);
+    /**
+     * @param classes number of terrain classes
+     * @return the position of the first elevation in a compiled map
+     */
+    private long elevationOffset(int classes) {
+        return (headerSize(classes) + (long) x * y + 3) & ~3L;
+    }
+
+    /**
+     * This method deals with input tasks, including reading elevation and path information.
+     *
+     * @param elevation_file a text file with elevation information (null if loaded from a compiled map)
+     * @param path_file      a text file with path (points) information (null if there is no path)
+     */
+    public void input(String elevation_file, String path_file) {
+        if (elevation_file != null) readElevations(elevation_file);
+        prepareCosts();
+        if (path_file != null) points.addAll(readPoints(path_file));
     }
-}
\ No newline at end of file
+
+    /**
+     * This method reads the points to visit from a text file (one "x y" per line).
+     *
+     * @param path_file a text file with the points to visit
+     * @return the points
+     */
+    public static List<int[]> readPoints(String path_file) {
+        // read and store path (sequence of points)
+        List<int[]> points = new ArrayList<>();
+        try (BufferedReader input = new BufferedReader(new FileReader(path_file))) {
+            String line;
+            String[] splitLine;
+            while ((line = input.readLine()) != null) {
+                splitLine = line.split(" ");
+                points.add(new int[]{Integer.parseInt(splitLine[0]), Integer.parseInt(splitLine[1])});
+            }
+        } catch (IOException e) {
+            System.out.println("File not found or some other errors.");
+        }
+        return points;
+    }
+
+    /**
+     * This method reads and stores elevations from a text file.
+     *
+     * @param elevation_file a text file with elevation information
+     */
+    public void readElevations(String elevation_file) {
+        // read and store elevations
+        try (BufferedReader input = new BufferedReader(new FileReader(elevation_file))) {
+            String line;
+            String[] splitLine;
+            int lines = 0;
+            while ((line = input.readLine()) != null) {
+                line = line.trim();
+                splitLine = line.split("\\s+");
+                for (int i = 0; i < x; i++) {
+                    elevation[index(i, lines)] = Float.parseFloat(splitLine[i]);
+                }
+                if (++lines == y) break;
+            }
+        } catch (IOException e) {
+            System.out.println("File not found or some other errors.");
+        }
+    }
+
+    /**
+     * This method executes A* search algorithm for every two consecutive points (legs), either one
+     * after another or in parallel. The partial paths are joined in order either way.
+     */
+    public void aStar() {
+        List<int[]> legs = new ArrayList<>();
+        String[] reports = report ? new String[Math.max(0, points.size() - 1)] : null;
+        LegEvent[] events = statsFile != null ? new LegEvent[Math.max(0, points.size() - 1)] : null;
+        long time = System.nanoTime();
+        if (weight > 0) {
+            double[] bounds = new double[Math.max(0, points.size() - 1)];
+            legs.addAll(anytime(points, weight, deadline, bounds, reports, events));
+            bound = 1.0;
+            for (double b : bounds) bound = Math.max(bound, b);
+        } else if (threads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                List<ForkJoinTask<int[]>> tasks = new ArrayList<>();
+                for (int i = 0; i < points.size() - 1; i++) {
+                    int leg = i;
+                    tasks.add(pool.submit(() -> solveLeg(points, leg, threadSearch.get(), reports, events)));
+                }
+                for (ForkJoinTask<int[]> task : tasks) legs.add(task.join());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < points.size() - 1; i++) legs.add(solveLeg(points, i, search, reports, events));
+        }
+        if (reports != null) {
+            for (String line : reports) System.out.println(line);
+            if (cache != null) System.out.println("cache: " + cache.hits + " hits, " + cache.misses + " misses");
+        }
+        if (events != null) writeStats(events, System.nanoTime() - time);
+
+        // record the optimal path
+        for (int[] leg : legs) addToPath(leg);
+    }
+
+    /**
+     * This method appends a route to the optimal path.
+     *
+     * @param route pixel indices
+     */
+    public void addToPath(int[] route) {
+        if (pathSize + route.length > path.length) path = Arrays.copyOf(path, Math.max(2 * path.length, pathSize + route.length));
+        System.arraycopy(route, 0, path, pathSize, route.length);
+        pathSize += route.length;
+        pathLegs.add(route);
+    }
+
+    /**
+     * This method writes the statistics of all legs of a route as one JSON object:
+     * {"legs": [{"leg": 1, ...}, ...], "wallTime": 12.3, "expanded": 4567, ...} (times in milliseconds).
+     *
+     * @param events the statistics of every leg
+     * @param wall   wall time of the whole route in nanoseconds
+     */
+    public void writeStats(LegEvent[] events, long wall) {
+        StringBuilder json = new StringBuilder("{\"legs\": [");
+        long expanded = 0, generated = 0, stale = 0, peak = 0;
+        for (int i = 0; i < events.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(events[i].json());
+            expanded += events[i].expanded;
+            generated += events[i].generated;
+            stale += events[i].stalePops;
+            peak = Math.max(peak, events[i].peakOpen);
+        }
+        json.append(String.format(Locale.ROOT, "], \"wallTime\": %.3f, \"expanded\": %d, \"generated\": %d, \"stalePops\": %d, \"peakOpen\": %d}%n",
+                wall / 1e6, expanded, generated, stale, peak));
+        try (BufferedWriter output = new BufferedWriter(new FileWriter(statsFile))) {
+            output.write(json.toString());
+        } catch (IOException e) {
+            System.out.println("File not found or some other errors.");
+        }
+    }
+
+    /**
+     * This method visits the points in the best order it can find instead of the order of the path
+     * file. The first point stays the starting point, and if the last point is the first one again,
+     * the route returns to it; points given twice are visited once. One Dijkstra search from every
+     * point (in parallel) gives the time costs between all of them and the routes of all pairs, a
+     * nearest-neighbour order is improved by 2-opt and Or-opt moves, and the points are then
+     * reordered accordingly.
+     */
+    public void orderedRoute() {
+        // distinct points, the starting point first
+        List<int[]> stops = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        for (int[] point : points) {
+            if (seen.add(index(point[0], point[1]))) stops.add(point);
+        }
+        boolean roundTrip = points.size() > 1 && seen.size() < points.size()
+                && index(points.get(0)[0], points.get(0)[1]) == index(points.get(points.size() - 1)[0], points.get(points.size() - 1)[1]);
+
+        long time = System.nanoTime();
+        TravelMatrix matrix = new TravelMatrix(this, stops);
+        long matrixTime = System.nanoTime() - time;
+        int[] tour = matrix.nearestNeighbour(roundTrip);
+        double initial = matrix.cost(tour);
+        tour = matrix.improve(tour);
+        if (report) {
+            System.out.printf("travel-time matrix: %d points, %d expanded, %.2f ms%n", stops.size(), matrix.expanded, matrixTime / 1e6);
+            System.out.printf("order: nearest neighbour %.1f s, improved %.1f s (%d moves), %.2f ms%n",
+                    initial, matrix.cost(tour), matrix.moves, (System.nanoTime() - time - matrixTime) / 1e6);
+        }
+
+        // visit the points in the new order
+        points = new ArrayList<>();
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < tour.length; i++) {
+            if (tour[i] == stops.size()) break;
+            points.add(stops.get(tour[i]));
+            order.append(i == 0 ? "" : ", ").append(stops.get(tour[i])[0]).append(' ').append(stops.get(tour[i])[1]);
+            if (i > 0) {
+                addToPath(matrix.routes[tour[i - 1]][tour[i]]);
+            }
+        }
+        System.out.println("The visiting order is: " + order + ".");
+    }
+
+    /**
+     * This method solves every leg with an incremental planner (LPA*), then applies the batches of
+     * changes of a text file one after another and repairs the legs after each batch instead of
+     * searching them again. A batch is a group of lines separated from the next by a blank line:
+     * "x y R G B" changes the terrain of a pixel, "x y R G B elevation" also its elevation, and
+     * "R G B speed" the speed of a terrain type (0 closes it). The final routes become the path.
+     *
+     * @param changes_file a text file with batches of changes
+     * @param verify       if every repaired leg is compared with a search from scratch
+     */
+    public void replan(String changes_file, boolean verify) {
+        // read the batches of changes
+        List<List<String[]>> batches = new ArrayList<>();
+        try (BufferedReader input = new BufferedReader(new FileReader(changes_file))) {
+            String line;
+            List<String[]> batch = new ArrayList<>();
+            while ((line = input.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) batch.add(line.split("\\s+"));
+                else if (!batch.isEmpty()) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) batches.add(batch);
+            for (List<String[]> changes : batches) {
+                for (String[] change : changes) {
+                    if (!validChange(change)) throw new IOException("invalid change: " + String.join(" ", change));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("File not found or some other errors.");
+            return;
+        }
+
+        List<IncrementalPlanner> planners = new ArrayList<>();
+        for (int i = 0; i < points.size() - 1; i++) {
+            IncrementalPlanner planner = new IncrementalPlanner(this, index(points.get(i)[0], points.get(i)[1]),
+                    index(points.get(i + 1)[0], points.get(i + 1)[1]));
+            planner.solve();
+            if (report) System.out.printf("leg %d: %d expanded (%.1f s)%n", i + 1, planner.expanded, planner.time());
+            planners.add(planner);
+        }
+
+        for (int b = 0; b < batches.size(); b++) {
+            // apply the changes as one batch and collect the pixels whose time costs changed
+            List<Integer> changed = new ArrayList<>();
+            Map<String, Double> speeds = new HashMap<>();
+            int size = batches.get(b).size();
+            int[] nodes = new int[size], terrainClasses = new int[size];
+            float[] heights = new float[size];
+            // a pixel keeps the elevation given by an earlier line of the batch
+            Map<Integer, Float> batchHeights = new HashMap<>();
+            int count = 0;
+            for (String[] change : batches.get(b)) {
+                if (change.length == 4) {
+                    speeds.put(change[0] + " " + change[1] + " " + change[2], Double.parseDouble(change[3]));
+                    continue;
+                }
+                int node = index(Integer.parseInt(change[0]), Integer.parseInt(change[1]));
+                int rgb = new Color(Integer.parseInt(change[2]), Integer.parseInt(change[3]), Integer.parseInt(change[4])).getRGB();
+                if (change.length > 5) batchHeights.put(node, Float.parseFloat(change[5]));
+                nodes[count] = node;
+                terrainClasses[count] = terrainClass(rgb);
+                heights[count++] = batchHeights.getOrDefault(node, elevation[node]);
+                changed.add(node);
+            }
+            change(Arrays.copyOf(nodes, count), terrainClasses, heights, speeds);
+            if (!speeds.isEmpty()) {
+                Set<Integer> classes = new HashSet<>();
+                for (String color : speeds.keySet()) {
+                    String[] rgb = color.split(" ");
+                    classes.add(terrainClass(new Color(Integer.parseInt(rgb[0]), Integer.parseInt(rgb[1]), Integer.parseInt(rgb[2])).getRGB()));
+                }
+                for (int node = 0; node < x * y; node++) {
+                    if (classes.contains((int) terrain[node])) changed.add(node);
+                }
+            }
+
+            // repair every leg, checking it against a search from scratch if asked to
+            for (int i = 0; i < planners.size(); i++) {
+                IncrementalPlanner planner = planners.get(i);
+                long expanded = planner.expanded;
+                planner.changed(changed);
+                planner.solve();
+                if (report) {
+                    System.out.printf("batch %d, leg %d: %d expanded (%.1f s)%n", b + 1, i + 1, planner.expanded - expanded, planner.time());
+                }
+                if (verify) {
+                    search(planner.start, planner.goal, new DistanceHeuristic(this, planner.goal, false), search);
+                    double full = search.g(planner.goal);
+                    if (Math.abs(full - planner.time()) > 1e-9 * Math.max(1.0, full)) {
+                        System.out.printf("batch %d, leg %d: repaired %.6f s, recomputed %.6f s%n", b + 1, i + 1, planner.time(), full);
+                    } else if (report) {
+                        System.out.printf("batch %d, leg %d: matches the recomputed route (%d expanded)%n", b + 1, i + 1, search.expanded);
+                    }
+                }
+            }
+        }
+
+        // record the optimal path
+        for (IncrementalPlanner planner : planners) {
+            addToPath(planner.route());
+        }
+    }
+
+    /**
+     * This method checks a line of a changes file: a pixel inside the map and a known terrain color
+     * with an optional finite elevation, or a known terrain color with a finite speed of at least 0.
+     *
+     * @param change the values of the line
+     * @return if the change can be applied
+     */
+    private boolean validChange(String[] change) {
+        try {
+            if (change.length == 4) {
+                double speed = Double.parseDouble(change[3]);
+                return terrainSpeed.containsKey(change[0] + " " + change[1] + " " + change[2])
+                        && Double.isFinite(speed) && speed >= 0;
+            }
+            if (change.length != 5 && change.length != 6) return false;
+            int i = Integer.parseInt(change[0]), j = Integer.parseInt(change[1]);
+            terrainClass(new Color(Integer.parseInt(change[2]), Integer.parseInt(change[3]), Integer.parseInt(change[4])).getRGB());
+            return i >= 0 && i < x && j >= 0 && j < y && (change.length == 5 || Float.isFinite(Float.parseFloat(change[5])));
+        } catch (IllegalArgumentException e) {
+            // malformed numbers, color components outside of 0-255, and unknown terrain colors
+            return false;
+        }
+    }
+
+    /**
+     * This method solves every leg with the anytime search (ARA*), sharing the time budget among
+     * them: a leg gets the budget of the route divided by the number of rounds of legs that run one
+     * after another (the number of legs, or fewer if they run in parallel).
+     *
+     * @param stops   the points to visit
+     * @param weight  the initial heuristic weight
+     * @param budget  the time budget of the whole route in nanoseconds (0 for none)
+     * @param bounds  the suboptimality bound achieved by every leg (filled)
+     * @param reports report line of every leg (null if legs are not reported)
+     * @param events  statistics of every leg (null if they are not kept)
+     * @return the routes of all legs, each from the visiting point back to the starting point
+     */
+    public List<int[]> anytime(List<int[]> stops, double weight, long budget, double[] bounds, String[] reports, LegEvent[] events) {
+        int legCount = stops.size() - 1;
+        int rounds = (legCount + Math.max(threads, 1) - 1) / Math.max(threads, 1);
+        long share = budget > 0 ? budget / Math.max(rounds, 1) : Long.MAX_VALUE / 2;
+        List<int[]> legs = new ArrayList<>();
+        List<ForkJoinTask<int[]>> tasks = new ArrayList<>();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            for (int i = 0; i < legCount; i++) {
+                int leg = i;
+                Callable<int[]> task = () -> {
+                    LegEvent event = new LegEvent(stops, leg);
+                    event.begin();
+                    int start = index(stops.get(leg)[0], stops.get(leg)[1]);
+                    int goal = index(stops.get(leg + 1)[0], stops.get(leg + 1)[1]);
+                    long time = System.nanoTime();
+                    Heuristic heuristic = Heuristic.create(heuristicMode, this, start, goal);
+                    event.heuristicTime = System.nanoTime() - time;
+                    // a budget too large to be added to the clock means no deadline
+                    long deadline = time + share < time ? Long.MAX_VALUE : time + share;
+                    AnytimeSearch search = new AnytimeSearch(this, start, goal, heuristic, weight, deadline);
+                    bounds[leg] = search.bound;
+                    event.search = "anytime";
+                    event.expanded = search.expanded;
+                    event.generated = search.queue.pushes;
+                    event.stalePops = Math.max(0, search.queue.pops - search.expanded);
+                    event.peakOpen = search.queue.peak;
+                    event.finish(this, search.route, System.nanoTime() - time, events);
+                    if (reports != null) {
+                        reports[leg] = String.format("leg %d: anytime %d rounds, %d expanded, %.2f ms (%.1f s, within %.3f of optimal)",
+                                leg + 1, search.rounds, search.expanded, (System.nanoTime() - time) / 1e6, time(search.route), search.bound);
+                    }
+                    return search.route;
+                };
+                if (pool != null) tasks.add(pool.submit(task));
+                else legs.add(task.call());
+            }
+            for (ForkJoinTask<int[]> task : tasks) legs.add(task.join());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+        return legs;
+    }
+
+    /**
+     * This method performs A* search between two consecutive points and backtracks the optimal path.
+     *
+     * @param stops   the points to visit
+     * @param leg     index of the starting point among them
+     * @param state   the search state to use
+     * @param reports report line of every leg (null if legs are not reported)
+     * @param events  statistics of every leg (null if they are not kept; a LegEvent is recorded either way)
+     * @return the optimal path from the visiting point back to the starting point (pixel indices)
+     */
+    public int[] solveLeg(List<int[]> stops, int leg, SearchState state, String[] reports, LegEvent[] events) {
+        LegEvent event = new LegEvent(stops, leg);
+        event.begin();
+        int start = index(stops.get(leg)[0], stops.get(leg)[1]);
+        int goal = index(stops.get(leg + 1)[0], stops.get(leg + 1)[1]);
+        long time = System.nanoTime();
+        int[] result;
+
+        // a leg solved before on the same version of the map needs neither a heuristic nor a search
+        if (cache != null) {
+            long solvedVersion = version;
+            result = cache.get(solvedVersion, start, goal, x);
+            if (result != null) {
+                if (reports != null) {
+                    reports[leg] = String.format("leg %d: cached, %.2f ms (%.1f s)", leg + 1, (System.nanoTime() - time) / 1e6, time(result));
+                }
+                event.search = "cached";
+            } else {
+                result = solveLeg(start, goal, leg, state, reports, event);
+                cache.put(solvedVersion, start, goal, result, x);
+            }
+        } else result = solveLeg(start, goal, leg, state, reports, event);
+        event.finish(this, result, System.nanoTime() - time, events);
+        return result;
+    }
+
+    /**
+     * This method searches one leg with the configured search (hierarchical, bidirectional, or A*).
+     *
+     * @param start   index of the starting pixel
+     * @param goal    index of the visiting pixel
+     * @param leg     index of the leg (for reports)
+     * @param state   the search state to use
+     * @param reports report line of every leg (null if legs are not reported)
+     * @param event   the statistics of the leg (filled)
+     * @return the optimal path from the visiting point back to the starting point (pixel indices)
+     */
+    private int[] solveLeg(int start, int goal, int leg, SearchState state, String[] reports, LegEvent event) {
+        long time = System.nanoTime(), flatTime;
+        long flatExpanded;
+
+        // search the abstract graph and refine the chosen clusters
+        if (hierarchy != null) {
+            int[] result = hierarchy.route(start, goal, state);
+            time = System.nanoTime() - time;
+            event.search = "hierarchical";
+            event.count(state);
+            if (reports != null) {
+                long expanded = state.expanded;
+                flatTime = System.nanoTime();
+                search(start, goal, Heuristic.create(heuristicMode, this, start, goal), state);
+                flatTime = System.nanoTime() - flatTime;
+                reports[leg] = String.format("leg %d: hierarchical %d expanded, %.2f ms (%.1f s); flat A* %d expanded, %.2f ms (%.1f s)",
+                        leg + 1, expanded, time / 1e6, time(result), state.expanded, flatTime / 1e6, state.g(goal));
+            }
+            return result;
+        }
+
+        // search from both ends and join both halves where they meet
+        if (bidirectional) {
+            SearchState backward = threadBackward.get();
+            int meeting = bidirectionalSearch(start, goal, state, backward);
+            event.search = "bidirectional";
+            event.count(state);
+            event.count(backward);
+            if (reports != null) {
+                reports[leg] = String.format("leg %d: bidirectional A* %d expanded, %.2f ms (%.1f s)", leg + 1,
+                        state.expanded + backward.expanded, (System.nanoTime() - time) / 1e6, state.g(meeting) + backward.g(meeting));
+            }
+            int[] first = backtrack(start, meeting, state);
+            int length = first.length;
+            for (int node = meeting; node != goal; node = backward.predecessor(node)) length++;
+            int[] result = new int[length];
+            int i = length - first.length;
+            System.arraycopy(first, 0, result, i, first.length);
+            for (int node = meeting; node != goal; ) {
+                node = backward.predecessor(node);
+                result[--i] = node;
+            }
+            return result;
+        }
+
+        // prepare heuristic values towards the visiting point
+        Heuristic heuristic = Heuristic.create(heuristicMode, this, start, goal);
+        event.heuristicTime = System.nanoTime() - time;
+        search(start, goal, heuristic, state);
+        event.search = "A*";
+        event.count(state);
+        if (reports != null) {
+            flatExpanded = state.expanded;
+            reports[leg] = String.format("leg %d: flat A* %d expanded, %.2f ms (%.1f s); %s",
+                    leg + 1, flatExpanded, (System.nanoTime() - time) / 1e6, state.g(goal), state.queue.counters());
+        }
+        return backtrack(start, goal, state);
+    }
+
+    /**
+     * This method backtracks a path along the predecessors of the pixels.
+     *
+     * @param start        index of the starting pixel
+     * @param goal         index of the visiting pixel
+     * @param predecessors predecessor of every pixel
+     * @return the path from the visiting point back to the starting point (pixel indices)
+     */
+    public int[] backtrack(int start, int goal, int[] predecessors) {
+        int length = 1;
+        for (int node = goal; node != start; node = predecessors[node]) length++;
+        int[] route = new int[length];
+        int node = goal;
+        for (int i = 0; i < length; i++) {
+            route[i] = node;
+            node = predecessors[node];
+        }
+        return route;
+    }
+
+    /**
+     * This method backtracks the optimal path found by the last search.
+     *
+     * @param start index of the starting pixel
+     * @param goal  index of the visiting pixel
+     * @param state the search state of the last search
+     * @return the optimal path from the visiting point back to the starting point (pixel indices)
+     */
+    public int[] backtrack(int start, int goal, SearchState state) {
+        int length = 1;
+        for (int node = goal; node != start; node = state.predecessor(node)) length++;
+        int[] result = new int[length];
+        int node = goal;
+        for (int i = 0; i < length; i++) {
+            result[i] = node;
+            node = state.predecessor(node);
+        }
+        return result;
+    }
+
+    /**
+     * This method performs a single A* search from one pixel to another. Pixels are identified
+     * by their linear index, so no objects are created for the pixels expanded during the search.
+     *
+     * @param start     index of the starting pixel
+     * @param goal      index of the visiting pixel
+     * @param heuristic heuristic prepared for the visiting pixel
+     * @param search    the search state to use
+     */
+    public void search(int start, int goal, Heuristic heuristic, SearchState search) {
+        search(start, goal, heuristic, search, 0, 0, x, y);
+    }
+
+    /**
+     * This method performs a single A* search that does not leave a rectangle of the map.
+     *
+     * @param start     index of the starting pixel
+     * @param goal      index of the visiting pixel
+     * @param heuristic heuristic prepared for the visiting pixel
+     * @param search    the search state to use
+     * @param left      the leftmost column of the rectangle
+     * @param top       the topmost row of the rectangle
+     * @param right     the column right of the rectangle
+     * @param bottom    the row below the rectangle
+     */
+    public void search(int start, int goal, Heuristic heuristic, SearchState search, int left, int top, int right, int bottom) {
+        search.reset();
+
+        // add starting point with it's f(n) value to the priority queue
+        search.queue.add(start, heuristic.estimate(start));
+
+        // g(n) of the starting point is 0
+        search.setG(start, 0.0);
+
+        /* although the starting point has no predecessor, adding
+           itself as its predecessor is convenient for back tracking */
+        search.discover(start, start);
+
+        int current, xTemp, yTemp;
+
+        // keep searching until reaching the visiting point
+        while (search.queue.size() != 0) {
+            current = search.queue.poll();
+
+            // a pixel may be queued several times, but it only has to be expanded once
+            if (search.visit(current)) {
+                search.expanded++;
+                xTemp = current % x;
+                yTemp = current / x;
+
+                // search east, west, south, and north adjacent pixels
+                if (xTemp + 1 < right) relax(search, heuristic, current, current + 1, edgeCost(current, EAST));
+                if (xTemp - 1 >= left) relax(search, heuristic, current, current - 1, edgeCost(current, WEST));
+                if (yTemp + 1 < bottom) relax(search, heuristic, current, current + x, edgeCost(current, SOUTH));
+                if (yTemp - 1 >= top) relax(search, heuristic, current, current - x, edgeCost(current, NORTH));
+            }
+
+            // reach the visiting point
+            if (search.queue.size() != 0 && search.queue.peek() == goal) break;
+        }
+    }
+
+    /**
+     * This method performs a one-to-many Dijkstra search from one pixel, which stops as soon as the
+     * time costs of all target pixels are final.
+     *
+     * @param source  index of the pixel to start from
+     * @param targets indices of the target pixels
+     * @param search  the search state to use (g(n) and predecessors of the target pixels are kept)
+     */
+    public void searchAll(int source, int[] targets, SearchState search) {
+        Heuristic none = node -> 0.0;
+        Set<Integer> remaining = new HashSet<>();
+        for (int target : targets) remaining.add(target);
+        search.reset();
+        search.queue.add(source, 0.0);
+        search.setG(source, 0.0);
+        search.discover(source, source);
+
+        int current, xTemp, yTemp;
+        while (search.queue.size() != 0 && !remaining.isEmpty()) {
+            current = search.queue.poll();
+            if (!search.visit(current)) continue;
+            search.expanded++;
+            remaining.remove(current);
+            xTemp = current % x;
+            yTemp = current / x;
+            if (xTemp + 1 < x) relax(search, none, current, current + 1, edgeCost(current, EAST));
+            if (xTemp - 1 >= 0) relax(search, none, current, current - 1, edgeCost(current, WEST));
+            if (yTemp + 1 < y) relax(search, none, current, current + x, edgeCost(current, SOUTH));
+            if (yTemp - 1 >= 0) relax(search, none, current, current - x, edgeCost(current, NORTH));
+        }
+    }
+
+    /**
+     * This method performs a bidirectional A* search: a forward search from the starting pixel and a
+     * backward search (over reversed edges, so that uphill and downhill stay asymmetric) from the
+     * visiting pixel, expanding the side with fewer queued pixels. Whenever a pixel is reached by
+     * both, the route through it is a candidate. Both sides use the average of the two heuristics,
+     * p(n) = (h_goal(n) - h_start(n)) / 2 forward and -p(n) backward, which keeps the reduced edge
+     * costs of both searches non-negative. Any route not found yet is then at least as long as the
+     * sum of both smallest f(n), so the search stops once that sum reaches the best candidate.
+     *
+     * @param start    index of the starting pixel
+     * @param goal     index of the visiting pixel
+     * @param forward  the search state of the forward search
+     * @param backward the search state of the backward search (predecessors point towards the visiting pixel)
+     * @return the pixel where the optimal route found by both searches meets
+     */
+    public int bidirectionalSearch(int start, int goal, SearchState forward, SearchState backward) {
+        long time = System.nanoTime();
+        // the backward search needs a bound on the time cost from the starting pixel, so it uses a closed-form one
+        Heuristic toGoal = Heuristic.create(heuristicMode, this, start, goal);
+        Heuristic fromStart = new DistanceHeuristic(this, start, heuristicMode.equals("manhattan"));
+        Heuristic forwardHalf = node -> (toGoal.estimate(node) - fromStart.estimate(node)) / 2;
+        Heuristic backwardHalf = node -> (fromStart.estimate(node) - toGoal.estimate(node)) / 2;
+        forward.reset();
+        backward.reset();
+        forward.heuristicTime = System.nanoTime() - time;
+        forward.setG(start, 0.0);
+        forward.discover(start, start);
+        forward.queue.add(start, forwardHalf.estimate(start));
+        backward.setG(goal, 0.0);
+        backward.discover(goal, goal);
+        backward.queue.add(goal, backwardHalf.estimate(goal));
+
+        int meeting = start;
+        double best = start == goal ? 0.0 : Double.POSITIVE_INFINITY;
+        int current, xTemp, yTemp;
+        while (forward.queue.size() != 0 && backward.queue.size() != 0
+                && forward.queue.peekKey() + backward.queue.peekKey() < best) {
+            boolean isForward = forward.queue.size() <= backward.queue.size();
+            SearchState side = isForward ? forward : backward, other = isForward ? backward : forward;
+            Heuristic heuristic = isForward ? forwardHalf : backwardHalf;
+            current = side.queue.poll();
+            if (!side.visit(current)) continue;
+            side.expanded++;
+            xTemp = current % x;
+            yTemp = current / x;
+
+            // the forward search moves from the current pixel, the backward search moves to it
+            if (xTemp + 1 < x) relax(side, heuristic, current, current + 1, isForward ? edgeCost(current, EAST) : edgeCost(current + 1, WEST));
+            if (xTemp - 1 >= 0) relax(side, heuristic, current, current - 1, isForward ? edgeCost(current, WEST) : edgeCost(current - 1, EAST));
+            if (yTemp + 1 < y) relax(side, heuristic, current, current + x, isForward ? edgeCost(current, SOUTH) : edgeCost(current + x, NORTH));
+            if (yTemp - 1 >= 0) relax(side, heuristic, current, current - x, isForward ? edgeCost(current, NORTH) : edgeCost(current - x, SOUTH));
+
+            // routes through the current pixel or its adjacent pixels that the other side has reached
+            for (int adjacent : new int[]{current, current + 1, current - 1, current + x, current - x}) {
+                if (adjacent < 0 || adjacent >= x * y || !side.isDiscovered(adjacent) || !other.isDiscovered(adjacent)) continue;
+                double total = side.g(adjacent) + other.g(adjacent);
+                if (total < best) {
+                    best = total;
+                    meeting = adjacent;
+                }
+            }
+        }
+        return meeting;
+    }
+
+    /**
+     * This method updates g(n) and the predecessor of an adjacent pixel if it has not been visited
+     * yet and going through the current pixel is better than what has been found so far.
+     *
+     * @param search    the search state to use
+     * @param heuristic heuristic prepared for the visiting pixel
+     * @param parent    index of the current pixel
+     * @param child     index of the adjacent pixel
+     * @param cost      time cost from the current pixel to the adjacent pixel
+     */
+    private void relax(SearchState search, Heuristic heuristic, int parent, int child, double cost) {
+        if (search.isVisited(child)) return;
+        double g1 = search.g(parent) + cost;
+
+        // not in the priority queue yet, or already in it but might be updated
+        if (!search.isDiscovered(child) || search.g(child) > g1) {
+            search.discover(child, parent);
+            search.setG(child, g1);
+            search.queue.add(child, g1 + heuristic.estimate(child));
+        }
+    }
+
+    /**
+     * @param route a route of adjacent pixels from the visiting pixel back to the starting pixel
+     * @return the total time cost of the route
+     */
+    public double time(int[] route) {
+        double total = 0.0;
+        for (int i = route.length - 1; i > 0; i--) total += stepTime(route[i], route[i - 1]);
+        return total;
+    }
+
+    /**
+     * @param from a pixel
+     * @param to   the same pixel or an adjacent one
+     * @return the time cost of the step between them (0 if it is the same pixel)
+     */
+    public double stepTime(int from, int to) {
+        if (from == to) return 0.0;
+        int direction = to / x == from / x ? (to > from ? EAST : WEST) : (to > from ? SOUTH : NORTH);
+        return edgeCost(from, direction);
+    }
+
+    /**
+     * @param route a route of adjacent pixels
+     * @return the real-world length of the route
+     */
+    public double length(int[] route) {
+        double total = 0.0;
+        for (int i = route.length - 1; i > 0; i--) {
+            if (route[i] != route[i - 1]) total += route[i] / x == route[i - 1] / x ? dx : dy;
+        }
+        return total;
+    }
+
+    /**
+     * This method converts the coordinates of a pixel into its linear index.
+     *
+     * @param xPixel x-coordinate of the pixel
+     * @param yPixel y-coordinate of the pixel
+     * @return the linear index of the pixel
+     */
+    public int index(int xPixel, int yPixel) {
+        return yPixel * x + xPixel;
+    }
+
+    /**
+     * This method calculates the time cost while traveling from one pixel to one of its adjacent
+     * pixels according to terrains and elevations (prepareCosts() stores these for every pixel)
+     *
+     * @param xStart x-coordinate the starting pixel
+     * @param yStart y-coordinate the starting pixel
+     * @param xVisit x-coordinate the visiting pixel
+     * @param yVisit y-coordinate the visiting pixel
+     * @return the time cost
+     */
+    public double cost(int xStart, int yStart, int xVisit, int yVisit) {
+        int start = index(xStart, yStart), visit = index(xVisit, yVisit);
+        double speed = classSpeed[terrainAt(start)];
+        if (start == visit) return speed == 0.0 || elevationAt(visit) >= 3000.0 ? 1000000.0 : 0.0;
+        if (xStart == xVisit) return stepCost(speed, elevationAt(start), elevationAt(visit), dy, dy / Math.sqrt(3), dy / Math.sqrt(2));
+        return stepCost(speed, elevationAt(start), elevationAt(visit), dx, dx / Math.sqrt(3), dx / Math.sqrt(2));
+    }
+
+    /**
+     * This method looks up the time cost from a pixel to one of its adjacent pixels.
+     *
+     * @param node      index of the pixel
+     * @param direction EAST, WEST, SOUTH, or NORTH (the adjacent pixel must exist)
+     * @return the time cost
+     */
+    public double edgeCost(int node, int direction) {
+        if (tiles != null) return tiles.cost(node, direction);
+        return switch (direction) {
+            case EAST -> eastCost[node];
+            case WEST -> westCost[node];
+            case SOUTH -> southCost[node];
+            default -> northCost[node];
+        };
+    }
+
+    /**
+     * @param node index of the pixel
+     * @return the terrain class of the pixel
+     */
+    public int terrainAt(int node) {
+        return tiles != null ? tiles.terrainAt(node) : terrain[node];
+    }
+
+    /**
+     * @param node index of the pixel
+     * @return the elevation of the pixel
+     */
+    public float elevationAt(int node) {
+        return tiles != null ? tiles.elevationAt(node) : elevation[node];
+    }
+
+    /**
+     * This method calculates the time cost of a single step between two adjacent pixels.
+     *
+     * @param speed  terrain speed of the starting pixel
+     * @param from   elevation of the starting pixel
+     * @param to     elevation of the visiting pixel
+     * @param step   real-world length of the step
+     * @param gentle altitude difference of a 30-degree slope over the step (step / sqrt(3))
+     * @param steep  altitude difference of a 45-degree slope over the step (step / sqrt(2))
+     * @return the time cost
+     */
+    public static double stepCost(double speed, double from, double to, double step, double gentle, double steep) {
+        // impassible terrain or too high (too cold) for human (given them a high cost so that A* won't pick them)
+        if (speed == 0.0 || to >= 3000.0) return 1000000.0;
+
+        // 30-degree or more downhill => 20% speed up; 30-degree or more uphill => 20% speed loss
+        double altitude_difference = to - from, hill;
+        if (altitude_difference >= gentle) hill = -0.2;
+        else if (altitude_difference <= -gentle) hill = 0.2;
+        else hill = 0.0;
+        if (altitude_difference >= steep) return 1000000.0;
+        return step / (speed * (1.0 + hill));
+    }
+
+    /**
+     * This method fills the travel time tables of all pixels. Terrain and elevations do not change
+     * during a run, so the search and the heuristics only have to look edge costs up afterwards.
+     */
+    public void prepareCosts() {
+        // tiled maps calculate time costs on demand
+        if (tiles != null) return;
+        eastCost = new float[x * y];
+        westCost = new float[x * y];
+        southCost = new float[x * y];
+        northCost = new float[x * y];
+        double xGentle = dx / Math.sqrt(3), xSteep = dx / Math.sqrt(2);
+        double yGentle = dy / Math.sqrt(3), ySteep = dy / Math.sqrt(2);
+        long time = System.nanoTime();
+        if (kernels.equals("scalar")) {
+            for (int node = 0; node < x * y; node++) updateCosts(node, xGentle, xSteep, yGentle, ySteep);
+            return;
+        }
+        prepareCostRows(xGentle, xSteep, yGentle, ySteep);
+        if (!kernels.equals("check")) return;
+
+        // compare the row kernels with the scalar calculation
+        long rowTime = System.nanoTime() - time;
+        float[][] rows = {eastCost.clone(), westCost.clone(), southCost.clone(), northCost.clone()};
+        time = System.nanoTime();
+        for (int node = 0; node < x * y; node++) updateCosts(node, xGentle, xSteep, yGentle, ySteep);
+        long scalarTime = System.nanoTime() - time;
+        float[][] scalar = {eastCost, westCost, southCost, northCost};
+        long different = 0;
+        for (int d = 0; d < 4; d++) {
+            for (int node = 0; node < x * y; node++) {
+                if (Float.floatToRawIntBits(rows[d][node]) != Float.floatToRawIntBits(scalar[d][node])) different++;
+            }
+        }
+        System.out.printf("kernels: travel times %d of %d differ (rows %.2f ms, scalar %.2f ms)%n",
+                different, 4L * x * y, rowTime / 1e6, scalarTime / 1e6);
+    }
+
+    /**
+     * This method fills the travel time tables row by row: the speed of every pixel of a row is
+     * looked up first, so that costRow() only works on flat arrays without branches the JIT
+     * compiler cannot vectorize. It gives the same tables as updateCosts() for every pixel.
+     *
+     * @param xGentle altitude difference of a 30-degree slope over a horizontal step
+     * @param xSteep  altitude difference of a 45-degree slope over a horizontal step
+     * @param yGentle altitude difference of a 30-degree slope over a vertical step
+     * @param ySteep  altitude difference of a 45-degree slope over a vertical step
+     */
+    private void prepareCostRows(double xGentle, double xSteep, double yGentle, double ySteep) {
+        double[] speeds = new double[x];
+        for (int j = 0; j < y; j++) {
+            int row = j * x;
+            for (int i = 0; i < x; i++) speeds[i] = classSpeed[terrain[row + i]];
+
+            // there is no adjacent pixel beyond the borders
+            costRow(eastCost, elevation, speeds, row, 0, 1, x - 1, dx, xGentle, xSteep);
+            eastCost[row + x - 1] = Float.POSITIVE_INFINITY;
+            costRow(westCost, elevation, speeds, row + 1, 1, -1, x - 1, dx, xGentle, xSteep);
+            westCost[row] = Float.POSITIVE_INFINITY;
+            if (j + 1 < y) costRow(southCost, elevation, speeds, row, 0, x, x, dy, yGentle, ySteep);
+            else Arrays.fill(southCost, row, row + x, Float.POSITIVE_INFINITY);
+            if (j - 1 >= 0) costRow(northCost, elevation, speeds, row, 0, -x, x, dy, yGentle, ySteep);
+            else Arrays.fill(northCost, row, row + x, Float.POSITIVE_INFINITY);
+        }
+    }
+
+    /**
+     * This method calculates the travel times of consecutive pixels of a row towards the pixels at
+     * the same offset, with the arithmetic of stepCost() but without branches.
+     *
+     * @param costs     the travel time table to fill
+     * @param elevation elevations of all pixels
+     * @param speeds    speeds of the pixels of the row
+     * @param first     index of the first pixel
+     * @param speed     index of the speed of the first pixel in speeds
+     * @param offset    offset of the adjacent pixel (1, -1, width, or -width)
+     * @param count     number of pixels
+     * @param step      real-world distance to the adjacent pixel
+     * @param gentle    altitude difference of a 30-degree slope
+     * @param steep     altitude difference of a 45-degree slope
+     */
+    static void costRow(float[] costs, float[] elevation, double[] speeds, int first, int speed, int offset, int count,
+                        double step, double gentle, double steep) {
+        for (int k = 0; k < count; k++) {
+            double v = speeds[speed + k], from = elevation[first + k], to = elevation[first + k + offset];
+            double difference = to - from;
+            double hill = difference >= gentle ? -0.2 : difference <= -gentle ? 0.2 : 0.0;
+            boolean blocked = v == 0.0 | to >= 3000.0 | difference >= steep;
+            costs[first + k] = blocked ? 1000000.0f : (float) (step / (v * (1.0 + hill)));
+        }
+    }
+
+    /**
+     * This method fills the travel time tables of one pixel.
+     *
+     * @param node   index of the pixel
+     * @param xGentle altitude difference of a 30-degree slope over a horizontal step
+     * @param xSteep  altitude difference of a 45-degree slope over a horizontal step
+     * @param yGentle altitude difference of a 30-degree slope over a vertical step
+     * @param ySteep  altitude difference of a 45-degree slope over a vertical step
+     */
+    private void updateCosts(int node, double xGentle, double xSteep, double yGentle, double ySteep) {
+        int i = node % x, j = node / x;
+        double speed = classSpeed[terrain[node]], from = elevation[node];
+
+        // there is no adjacent pixel beyond the borders
+        eastCost[node] = i + 1 < x ? (float) stepCost(speed, from, elevation[node + 1], dx, xGentle, xSteep) : Float.POSITIVE_INFINITY;
+        westCost[node] = i - 1 >= 0 ? (float) stepCost(speed, from, elevation[node - 1], dx, xGentle, xSteep) : Float.POSITIVE_INFINITY;
+        southCost[node] = j + 1 < y ? (float) stepCost(speed, from, elevation[node + x], dy, yGentle, ySteep) : Float.POSITIVE_INFINITY;
+        northCost[node] = j - 1 >= 0 ? (float) stepCost(speed, from, elevation[node - x], dy, yGentle, ySteep) : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * This method changes the speeds of some terrain types.
+     *
+     * @param speeds new speed (m/s) by terrain color ("R G B", as in terrainSpeed)
+     * @throws IllegalArgumentException if a color is no terrain type
+     */
+    public void setSpeeds(Map<String, Double> speeds) {
+        change(new int[0], new int[0], new float[0], speeds);
+    }
+
+    /**
+     * This method changes the terrain class and elevation of one pixel.
+     *
+     * @param node         index of the pixel
+     * @param terrainClass the new terrain class
+     * @param height       the new elevation
+     * @throws IllegalStateException if the map is read in tiles
+     */
+    public void setPixel(int node, int terrainClass, float height) {
+        change(new int[]{node}, new int[]{terrainClass}, new float[]{height}, Map.of());
+    }
+
+    /**
+     * This method applies a batch of changes, the speeds of some terrain types and then the terrain
+     * classes and elevations of some pixels, and records the change of the map only once.
+     *
+     * @param nodes   indices of the changed pixels
+     * @param classes the new terrain class of every changed pixel
+     * @param heights the new elevation of every changed pixel
+     * @param speeds  new speed (m/s) by terrain color ("R G B", as in terrainSpeed)
+     * @throws IllegalArgumentException if a color is no terrain type
+     * @throws IllegalStateException    if pixels of a map read in tiles are changed
+     */
+    public void change(int[] nodes, int[] classes, float[] heights, Map<String, Double> speeds) {
+        if (nodes.length > 0 && tiles != null) throw new IllegalStateException("Tiled maps cannot be changed");
+        for (Map.Entry<String, Double> entry : speeds.entrySet()) {
+            if (!terrainSpeed.containsKey(entry.getKey())) throw new IllegalArgumentException("Unknown terrain color: " + entry.getKey());
+        }
+        for (Map.Entry<String, Double> entry : speeds.entrySet()) {
+            String[] rgb = entry.getKey().split(" ");
+            terrainSpeed.put(entry.getKey(), entry.getValue());
+            classSpeed[terrainClass(new Color(Integer.parseInt(rgb[0]), Integer.parseInt(rgb[1]), Integer.parseInt(rgb[2])).getRGB())] = entry.getValue();
+        }
+        if (!speeds.isEmpty()) prepareCosts();
+        for (int i = 0; i < nodes.length; i++) updatePixel(nodes[i], classes[i], heights[i]);
+        if (nodes.length > 0 || !speeds.isEmpty()) changed();
+    }
+
+    /**
+     * This method changes the terrain class and elevation of one pixel and the time costs around it,
+     * without recording the change of the map.
+     *
+     * @param node         index of the pixel
+     * @param terrainClass the new terrain class
+     * @param height       the new elevation
+     */
+    private void updatePixel(int node, int terrainClass, float height) {
+        terrain[node] = (byte) terrainClass;
+        elevation[node] = height;
+        if (img != null) img.setRGB(node % x, node / x, classColor[terrainClass]);
+        if (basePixels != null) basePixels[node] = classColor[terrainClass];
+
+        // the pixel's own costs and the costs of moving onto it from its adjacent pixels
+        double xGentle = dx / Math.sqrt(3), xSteep = dx / Math.sqrt(2);
+        double yGentle = dy / Math.sqrt(3), ySteep = dy / Math.sqrt(2);
+        updateCosts(node, xGentle, xSteep, yGentle, ySteep);
+        if (node % x + 1 < x) updateCosts(node + 1, xGentle, xSteep, yGentle, ySteep);
+        if (node % x - 1 >= 0) updateCosts(node - 1, xGentle, xSteep, yGentle, ySteep);
+        if (node / x + 1 < y) updateCosts(node + x, xGentle, xSteep, yGentle, ySteep);
+        if (node / x - 1 >= 0) updateCosts(node - x, xGentle, xSteep, yGentle, ySteep);
+    }
+
+    /**
+     * This method records a change of the map: cached legs become invalid (a change anywhere might
+     * open a faster route between any two points), and landmark tables and the hierarchy are rebuilt.
+     */
+    private void changed() {
+        version++;
+        if (cache != null) cache.invalidate(version);
+        if (landmarks != null) landmarks = Landmarks.open(this, landmarks.pixels.length);
+        if (hierarchy != null) hierarchy = Hierarchy.open(this, hierarchy.clusterSize);
+    }
+
+    /**
+     * This method calculates a 64-bit fingerprint of everything time costs depend on (terrain speeds,
+     * pixel size, terrain classes, and elevations), so that data derived from the map can tell if it
+     * is still valid. A tiled map is identified by its file instead of reading every tile.
+     *
+     * @return the fingerprint
+     */
+    public long fingerprint() {
+        long hash = 1125899906842597L;
+        for (double speed : classSpeed) hash = 31 * hash + Double.doubleToLongBits(speed);
+        hash = 31 * (31 * hash + Double.doubleToLongBits(dx)) + Double.doubleToLongBits(dy);
+        hash = 31 * (31 * hash + x) + y;
+        if (tiles != null) {
+            File file = new File(terrainFile);
+            return 31 * (31 * hash + file.length()) + file.lastModified();
+        }
+        for (int i = 0; i < terrain.length; i++) {
+            hash = 31 * (31 * hash + terrain[i]) + Float.floatToIntBits(elevation[i]);
+        }
+        return hash;
+    }
+
+    /**
+     * This method returns the highest speed a pixel can be crossed with, which is the fastest
+     * terrain with the 20% downhill speed up. Dividing a distance by it never overestimates
+     * the time cost.
+     *
+     * @return the highest speed (m/s)
+     */
+    public double maxSpeed() {
+        double max = 0.0;
+        for (double speed : terrainSpeed.values()) max = Math.max(max, speed);
+        return max * 1.2;
+    }
+
+    /**
+     * This method calculates heuristic values of all points before every A* search (with the row
+     * kernel, the scalar scan, or both, see kernels).
+     * It keeps scanning for checking if there a better heuristic value for every
+     * point from their adjacent points (4 directions) until there is no change in
+     * a single scan.
+     *
+     * @param h heuristic values of all pixels (the visiting pixel 0, others a large number)
+     */
+    public void heuristic(double[] h) {
+        if (kernels.equals("rows")) {
+            heuristicRows(h);
+            return;
+        }
+        double[] rows = kernels.equals("check") ? h.clone() : null;
+        long time = System.nanoTime();
+        heuristicScalar(h);
+        if (rows == null) return;
+        long scalarTime = System.nanoTime() - time;
+        time = System.nanoTime();
+        heuristicRows(rows);
+        long rowTime = System.nanoTime() - time;
+        int different = 0;
+        for (int i = 0; i < h.length; i++) {
+            if (Double.doubleToRawLongBits(rows[i]) != Double.doubleToRawLongBits(h[i])) different++;
+        }
+        System.out.printf("kernels: sweep %d of %d differ (rows %.2f ms, scalar %.2f ms)%n",
+                different, h.length, rowTime / 1e6, scalarTime / 1e6);
+    }
+
+    /**
+     * This method performs the scan of heuristic() row by row instead of column by column. A pixel
+     * only depends on the updated values of its west and north adjacent pixels and on the previous
+     * values of its east and south ones, which holds in both orders, and taking the minimum is
+     * exact, so the values are the same bit by bit. Everything but the west relaxation is done for a
+     * whole row at once over contiguous memory (which the JIT compiler can vectorize); the west
+     * relaxation carries from pixel to pixel and follows in a second loop.
+     *
+     * @param h heuristic values of all pixels (the visiting pixel 0, others a large number)
+     */
+    public void heuristicRows(double[] h) {
+        double[] row = new double[x];
+        for (int j = 0; j < y; j++) {
+            int first = j * x;
+            boolean north = j - 1 >= 0, south = j + 1 < y;
+            for (int i = 0; i < x; i++) {
+                int node = first + i;
+                double value = h[node];
+                if (i + 1 < x) value = Math.min(value, h[node + 1] + eastCost[node]);
+                if (south) value = Math.min(value, h[node + x] + southCost[node]);
+                if (north) value = Math.min(value, h[node - x] + northCost[node]);
+                row[i] = value;
+            }
+            h[first] = row[0];
+            for (int i = 1; i < x; i++) h[first + i] = Math.min(row[i], h[first + i - 1] + westCost[first + i]);
+        }
+    }
+
+    /**
+     * This method is the original scan of heuristic(), pixel by pixel.
+     *
+     * @param h heuristic values of all pixels (the visiting pixel 0, others a large number)
+     */
+    public void heuristicScalar(double[] h) {
+        boolean d = true, n = true, e = true, s = true, w = true;
+        while (d) {
+            d = false;
+            for (int i = 0; i < x; i++) {
+                for (int j = 0; j < y; j++) {
+                    // from east
+                    if (i + 1 < x) {
+                        if (h[index(i + 1, j)] + eastCost[index(i, j)] < h[index(i, j)]) {
+                            h[index(i, j)] = h[index(i + 1, j)] + eastCost[index(i, j)];
+                            e = true;
+                        } else e = false;
+                    }
+
+                    // from west
+                    if (i - 1 >= 0) {
+                        if (h[index(i - 1, j)] + westCost[index(i, j)] < h[index(i, j)]) {
+                            h[index(i, j)] = h[index(i - 1, j)] + westCost[index(i, j)];
+                            w = true;
+                        } else w = false;
+                    }
+
+                    // from south
+                    if (j + 1 < y) {
+                        if (h[index(i, j + 1)] + southCost[index(i, j)] < h[index(i, j)]) {
+                            h[index(i, j)] = h[index(i, j + 1)] + southCost[index(i, j)];
+                            s = true;
+                        } else s = false;
+                    }
+
+                    // from north
+                    if (j - 1 >= 0) {
+                        if (h[index(i, j - 1)] + northCost[index(i, j)] < h[index(i, j)]) {
+                            h[index(i, j)] = h[index(i, j - 1)] + northCost[index(i, j)];
+                            n = true;
+                        } else n = false;
+                    }
+                }
+            }
+            if (!e && !w && !s && !n) break;
+        }
+    }
+
+    /**
+     * This method accumulates the real-world length of a path from the steps between consecutive
+     * adjacent pixels (steps between legs that do not meet are not counted).
+     *
+     * @param nodes pixel indices of the path
+     * @param count number of pixels of the path
+     * @return the length
+     */
+    public double pathLength(int[] nodes, int count) {
+        double total_path_length = 0.0;
+        int xTemp, yTemp, xLast = -1, yLast = -1;
+        for (int k = 0; k < count; k++) {
+            xTemp = nodes[k] % x;
+            yTemp = nodes[k] / x;
+            if (xLast != -1) {
+                if (xTemp == xLast && Math.abs(yLast - yTemp) == 1) total_path_length += dy;
+                else if (yTemp == yLast && Math.abs(xLast - xTemp) == 1) total_path_length += dx;
+            }
+            xLast = xTemp;
+            yLast = yTemp;
+        }
+        return total_path_length;
+    }
+
+    public void output(String output_img_name, String path_file) {
+        // some auxiliary variables
+        String aString = path_file.substring(0, path_file.indexOf("."));
+
+        // a compiled map has no image, but every pixel has the color of its terrain class
+        if (drawImage && img == null && 4L * x * y < Runtime.getRuntime().maxMemory() / 4) {
+            img = new BufferedImage(x, y, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            for (int node = 0; node < x * y; node++) pixels[node] = classColor[terrainAt(node)];
+        }
+
+        // give all points a bigger mark, and draw the path
+        if (drawImage && img != null) {
+            drawPoints(img, points);
+            drawRoute(img, path, pathSize);
+        }
+
+        // accumulate the total distance
+        double total_path_length = pathLength(path, pathSize);
+
+        // an anytime search also tells how far from optimal the route might be
+        String distance = "The total distance of " + aString + " path is: " + total_path_length + " m.";
+        if (weight > 0) distance += String.format(" Its time cost is at most %.3f times the optimal one.", bound);
+
+        // output image (.png), route, and distance (.txt and standard output)
+        try (BufferedWriter output = new BufferedWriter(new FileWriter("Distance.txt"))) {
+            System.out.println(distance);
+            output.write(distance);
+            if (routeFile != null) new RouteWriter(this).write(routeFile);
+            if (!drawImage) return;
+            if (img != null) ImageIO.write(img, "png", new File(output_img_name + ".png"));
+            else System.out.println("The map is too large to be drawn, so no image is written.");
+        } catch (IOException e) {
+            System.out.println("IO errors.");
+        }
+    }
+
+    /**
+     * This method draws routes on a copy of the terrain, so that the terrain itself stays untouched
+     * (several queries of the server may draw at the same time).
+     *
+     * @param stops the visited points, which get a bigger mark
+     * @param legs  the routes between them (pixel indices)
+     * @return the drawing (null if the map is too large to be drawn)
+     */
+    public BufferedImage render(List<int[]> stops, List<int[]> legs) {
+        int[] base = basePixels();
+        if (base == null) return null;
+        BufferedImage canvas = new BufferedImage(x, y, BufferedImage.TYPE_INT_RGB);
+        System.arraycopy(base, 0, ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData(), 0, base.length);
+        drawPoints(canvas, stops);
+        for (int[] leg : legs) drawRoute(canvas, leg, leg.length);
+        return canvas;
+    }
+
+    /**
+     * @return colors of all pixels of the terrain without routes, read in bulk when first needed
+     * (null if the map is too large to be drawn)
+     */
+    private synchronized int[] basePixels() {
+        if (basePixels == null && (img != null || 4L * x * y < Runtime.getRuntime().maxMemory() / 4)) {
+            int[] pixels = new int[x * y];
+            if (img != null) {
+                for (int i = 0; i < y; i++) readRow(img, i, pixels, i * x);
+            } else {
+                for (int node = 0; node < x * y; node++) pixels[node] = classColor[terrainAt(node)];
+            }
+            basePixels = pixels;
+        }
+        return basePixels;
+    }
+
+    /**
+     * This method gives points a bigger mark (5 x 5 pixels) on an image.
+     *
+     * @param image  the image (as large as the map)
+     * @param points the points
+     */
+    public void drawPoints(BufferedImage image, List<int[]> points) {
+        WritableRaster raster = image.getRaster();
+        Object color = image.getColorModel().getDataElements(PATH_COLOR, null);
+        for (int[] a : points) {
+            for (int i = Math.max(a[0] - 2, 0); i <= Math.min(a[0] + 2, x - 1); i++) {
+                for (int j = Math.max(a[1] - 2, 0); j <= Math.min(a[1] + 2, y - 1); j++) raster.setDataElements(i, j, color);
+            }
+        }
+    }
+
+    /**
+     * This method draws a route on an image, converting the path color into the pixel format of
+     * the image only once.
+     *
+     * @param image the image (as large as the map)
+     * @param route pixel indices
+     * @param count number of pixels of the route to draw
+     */
+    public void drawRoute(BufferedImage image, int[] route, int count) {
+        WritableRaster raster = image.getRaster();
+        Object color = image.getColorModel().getDataElements(PATH_COLOR, null);
+        for (int k = 0; k < count; k++) raster.setDataElements(route[k] % x, route[k] / x, color);
+    }
+
+    /**
+     * This method solves the routes of several path files and draws each on its own copy of the
+     * terrain, routes in parallel with the threads of the map (each with its own search state).
+     * The images are written as prefix-name.png (name is the path file without its extension),
+     * and the distance of every route is printed in the order of the path files.
+     *
+     * @param path_files the path files
+     * @param prefix     file name prefix of the images
+     */
+    public void renderAll(List<String> path_files, String prefix) {
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (String path_file : path_files) {
+            tasks.add(() -> {
+                List<int[]> stops = readPoints(path_file);
+                List<int[]> legs = new ArrayList<>();
+                SearchState state = threads > 1 ? threadSearch.get() : search;
+                int count = 0;
+                for (int leg = 0; leg < stops.size() - 1; leg++) {
+                    legs.add(solveLeg(stops, leg, state, null, null));
+                    count += legs.get(leg).length;
+                }
+
+                // the same distance as output() gives for the joined path
+                int[] joined = new int[count];
+                count = 0;
+                for (int[] route : legs) {
+                    System.arraycopy(route, 0, joined, count, route.length);
+                    count += route.length;
+                }
+                double total = pathLength(joined, count);
+                String name = new File(path_file).getName().replaceFirst("\\.[^.]*$", "");
+                BufferedImage canvas = render(stops, legs);
+                if (canvas != null) ImageIO.write(canvas, "png", new File(prefix + "-" + name + ".png"));
+                return "The total distance of " + path_file.substring(0, path_file.lastIndexOf('.')) + " path is: " + total + " m."
+                        + (canvas == null ? " The map is too large to be drawn, so no image is written." : "");
+            });
+        }
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            if (pool != null) {
+                for (Future<String> line : pool.invokeAll(tasks)) System.out.println(line.get());
+            } else {
+                for (Callable<String> task : tasks) System.out.println(task.call());
+            }
+        } catch (Exception e) {
+            System.out.println("File not found or some other errors: " + e.getMessage());
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args command line arguments -- terrain-image elevation-file path-file output-image-filename [options]
+     */
+    public static void main(String[] args) {
+        // split arguments into positional arguments and --name=value options
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) options.put(arg.substring(2), "true");
+                else options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            } else positional.add(arg);
+        }
+        String mode = options.getOrDefault("heuristic", "euclidean");
+        long tileBudget = options.containsKey("tile-cache") ? Long.parseLong(options.get("tile-cache")) << 20 : 0;
+        int tileSize = Integer.parseInt(options.getOrDefault("tile-size", "256"));
+        boolean bidirectional = options.containsKey("bidirectional");
+        // the stopping rule of the bidirectional search needs a consistent heuristic, which sweep is not
+        boolean inconsistent = bidirectional && mode.equals("sweep");
+        boolean optimizeOrder = options.containsKey("order");
+        String changes = options.get("changes");
+        String openList = options.getOrDefault("open-list", "binary");
+        String kernels = options.getOrDefault("kernels", "rows");
+        String statsFile = options.get("stats");
+        String routeFile = options.get("route");
+        double bucketWidth = Double.parseDouble(options.getOrDefault("bucket-width", "1"));
+        long deadline = (long) (Double.parseDouble(options.getOrDefault("deadline", "0")) * 1e6);
+        double weight = Double.parseDouble(options.getOrDefault("weight", deadline > 0 ? "3" : "0"));
+        int cacheSize = Integer.parseInt(options.getOrDefault("cache", !positional.isEmpty() && positional.get(0).equals("serve") ? "4096" : "0"));
+        int landmarkCount = Integer.parseInt(options.getOrDefault("landmarks", "8"));
+        String hierarchical = options.get("hierarchical");
+        int clusterSize = hierarchical == null ? 0 : hierarchical.equals("true") ? 32 : Integer.parseInt(hierarchical);
+        String parallel = options.getOrDefault("parallel", "1");
+        int threads = parallel.equals("true") ? Runtime.getRuntime().availableProcessors()
+                : parallel.matches("\\d+") ? Integer.parseInt(parallel) : 0;
+        args = positional.toArray(new String[0]);
+
+        // load maps once and answer route queries until the input ends
+        if (args.length >= 2 && args[0].equals("serve")) {
+            if (!Heuristic.MODES.contains(mode) || inconsistent || threads < 1 || Integer.bitCount(tileSize) != 1
+                    || landmarkCount < 1 || cacheSize < 0 || !options.getOrDefault("port", "0").matches("\\d+")
+                    || !OpenList.KINDS.contains(openList) || !(bucketWidth > 0) || !List.of("rows", "scalar", "check").contains(kernels)) {
+                System.out.println("Usage: lab1.java serve [name=]compiled-map|[name=]terrain-image,elevation-file ..."
+                        + " [--port=port] [--image-dir=directory] [--heuristic=" + String.join("|", Heuristic.MODES) + "]"
+                        + " [--parallel[=threads]] [--landmarks=count] [--bidirectional] [--hierarchical[=cluster-size]]"
+                        + " [--cache=legs] [--open-list=" + String.join("|", OpenList.KINDS) + "] [--bucket-width=seconds]"
+                        + " [--kernels=rows|scalar|check] [--tile-cache=MB] [--tile-size=pixels]");
+                System.exit(0);
+            }
+            Map<String, lab1> maps = new LinkedHashMap<>();
+            for (int i = 1; i < args.length; i++) {
+                int equals = args[i].indexOf('=');
+                String name = equals < 0 ? new File(args[i].split(",")[0]).getName() : args[i].substring(0, equals);
+                String[] files = args[i].substring(equals + 1).split(",");
+                lab1 l1 = new lab1(files[0], isCompiledMap(files[0]) ? tileBudget : 0, tileSize);
+                if (l1.tiles != null && (!mode.equals("euclidean") && !mode.equals("manhattan") || openList.equals("quaternary"))) {
+                    System.out.println("Tiled maps only support the euclidean and manhattan heuristics and no quaternary open list.");
+                    System.exit(0);
+                }
+                l1.heuristicMode = mode;
+                l1.kernels = kernels;
+                l1.bidirectional = bidirectional;
+                // the search states of the threads answering queries are created with these settings
+                l1.openList = openList;
+                l1.bucketWidth = bucketWidth;
+                l1.search = l1.newSearchState();
+                if (cacheSize > 0) l1.cache = new LegCache(cacheSize);
+                l1.input(files.length > 1 ? files[1] : null, null);
+                if (mode.equals("landmarks")) l1.landmarks = Landmarks.open(l1, landmarkCount);
+                if (clusterSize > 0) l1.hierarchy = Hierarchy.open(l1, clusterSize);
+                maps.put(name, l1);
+            }
+            RouteServer server = new RouteServer(maps, threads, Path.of(options.getOrDefault("image-dir", ".")));
+            try {
+                if (options.containsKey("port")) server.listen(Integer.parseInt(options.get("port")));
+                else server.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out));
+            } catch (IOException e) {
+                System.out.println("IO errors: " + e.getMessage());
+            } finally {
+                server.shutdown();
+            }
+            return;
+        }
+
+        // measure the stages of solving the testcases, each loaded once
+        if (args.length >= 2 && args[0].equals("bench")) {
+            Benchmark bench = new Benchmark(Integer.parseInt(options.getOrDefault("warmup", "3")),
+                    Integer.parseInt(options.getOrDefault("iterations", "5")),
+                    (long) (Double.parseDouble(options.getOrDefault("iteration-time", "200")) * 1e6),
+                    Arrays.asList(options.getOrDefault("stages", String.join(",", Benchmark.STAGES)).split(",")));
+            if (!Heuristic.MODES.contains(mode) || inconsistent || !OpenList.KINDS.contains(openList)
+                    || !Benchmark.STAGES.containsAll(bench.stages)) {
+                System.out.println("Usage: lab1.java bench testcase-directory ... [--warmup=iterations] [--iterations=iterations]"
+                        + " [--iteration-time=ms] [--stages=" + String.join(",", Benchmark.STAGES) + "] [options]");
+                System.exit(0);
+            }
+            for (int i = 1; i < args.length; i++) {
+                File directory = new File(args[i]);
+                lab1 l1 = new lab1(new File(directory, "terrain.png").getPath());
+                l1.heuristicMode = mode;
+                l1.kernels = kernels;
+                l1.bidirectional = bidirectional;
+                l1.openList = openList;
+                l1.bucketWidth = bucketWidth;
+                l1.search = l1.newSearchState();
+                l1.input(new File(directory, "mpp.txt").getPath(), null);
+                if (mode.equals("landmarks")) l1.landmarks = Landmarks.open(l1, landmarkCount);
+                if (clusterSize > 0) l1.hierarchy = Hierarchy.open(l1, clusterSize);
+                bench.run(directory, l1);
+            }
+            return;
+        }
+
+        // solve and draw the routes of several path files, each on its own copy of the terrain
+        if (args.length >= 4 && args[0].equals("render")) {
+            boolean compiledMap = isCompiledMap(args[1]);
+            int first = compiledMap ? 3 : 4;
+            if (args.length <= first || !Heuristic.MODES.contains(mode) || inconsistent || threads < 1 || !OpenList.KINDS.contains(openList)) {
+                System.out.println("Usage: lab1.java render terrain-image elevation-file|compiled-map output-prefix path-file ... [options]");
+                System.exit(0);
+            }
+            lab1 l1 = new lab1(args[1], compiledMap ? tileBudget : 0, tileSize);
+            if (l1.tiles != null && (!mode.equals("euclidean") && !mode.equals("manhattan") || openList.equals("quaternary"))) {
+                System.out.println("Tiled maps only support the euclidean and manhattan heuristics and no quaternary open list.");
+                System.exit(0);
+            }
+            l1.heuristicMode = mode;
+            l1.kernels = kernels;
+            l1.threads = threads;
+            l1.bidirectional = bidirectional;
+            l1.openList = openList;
+            l1.bucketWidth = bucketWidth;
+            l1.search = l1.newSearchState();
+            if (cacheSize > 0) l1.cache = new LegCache(cacheSize);
+            l1.input(compiledMap ? null : args[2], null);
+            if (mode.equals("landmarks")) l1.landmarks = Landmarks.open(l1, landmarkCount);
+            if (clusterSize > 0) l1.hierarchy = Hierarchy.open(l1, clusterSize);
+            l1.renderAll(Arrays.asList(args).subList(first, args.length), args[first - 1]);
+            return;
+        }
+
+        // compile a terrain image and an elevation file into a single binary map
+        if (args.length == 4 && args[0].equals("compile")) {
+            lab1 l1 = new lab1(args[1]);
+            l1.input(args[2], null);
+            l1.compile(args[3]);
+            return;
+        }
+
+        // a compiled map already contains the elevations
+        boolean compiled = args.length == 3 && isCompiledMap(args[0]);
+        if ((args.length != 4 && !compiled) || !Heuristic.MODES.contains(mode) || inconsistent || threads < 1 || Integer.bitCount(tileSize) != 1
+                || landmarkCount < 1 || (weight != 0 && !(Double.isFinite(weight) && weight >= 1)) || deadline < 0
+                || !OpenList.KINDS.contains(openList) || !(bucketWidth > 0) || !List.of("rows", "scalar", "check").contains(kernels)) {
+            System.out.println("Usage: lab1.java terrain-image elevation-file path-file output-image-filename"
+                    + " [--heuristic=" + String.join("|", Heuristic.MODES) + "] [--parallel[=threads]]"
+                    + " [--landmarks=count] [--bidirectional] [--hierarchical[=cluster-size]] [--cache=legs] [--report]"
+                    + " [--changes=file [--verify]] [--weight=w] [--deadline=ms] [--order]"
+                    + " [--open-list=" + String.join("|", OpenList.KINDS) + "] [--bucket-width=seconds]"
+                    + " [--kernels=rows|scalar|check] [--stats=json-file] [--route=file.bin|file.geojson] [--no-image]");
+            System.out.println("       lab1.java compiled-map path-file output-image-filename [options]"
+                    + " [--tile-cache=MB] [--tile-size=pixels]");
+            System.out.println("       lab1.java compile terrain-image elevation-file compiled-map");
+            System.out.println("       lab1.java render terrain-image elevation-file|compiled-map output-prefix path-file ... [options]");
+            System.out.println("       lab1.java bench testcase-directory ... [--warmup=iterations] [--iterations=iterations]"
+                    + " [--iteration-time=ms] [--stages=" + String.join(",", Benchmark.STAGES) + "] [options]");
+            System.out.println("       lab1.java serve [name=]compiled-map|[name=]terrain-image,elevation-file ..."
+                    + " [--port=port] [--image-dir=directory] [options]");
+            System.exit(0);
+        }
+        lab1 l1 = new lab1(args[0], compiled ? tileBudget : 0, tileSize);
+        if (l1.tiles != null && !mode.equals("euclidean") && !mode.equals("manhattan")) {
+            System.out.println("Tiled maps only support the euclidean and manhattan heuristics.");
+            System.exit(0);
+        }
+        l1.heuristicMode = mode;
+        l1.kernels = kernels;
+        l1.threads = threads;
+        l1.report = options.containsKey("report");
+        l1.statsFile = statsFile;
+        l1.routeFile = routeFile;
+        l1.drawImage = !options.containsKey("no-image");
+        l1.bidirectional = bidirectional;
+        l1.weight = weight;
+        l1.deadline = deadline;
+        if (l1.tiles != null && openList.equals("quaternary")) {
+            System.out.println("Tiled maps do not support the quaternary open list.");
+            System.exit(0);
+        }
+        l1.openList = openList;
+        l1.bucketWidth = bucketWidth;
+        l1.search = l1.newSearchState();
+        if (cacheSize > 0) l1.cache = new LegCache(cacheSize);
+        String path_file = args[args.length - 2];
+        l1.input(compiled ? null : args[1], path_file);
+        if (mode.equals("landmarks")) l1.landmarks = Landmarks.open(l1, landmarkCount);
+        if (clusterSize > 0) l1.hierarchy = Hierarchy.open(l1, clusterSize);
+        if ((changes != null || weight > 0) && l1.tiles != null) {
+            System.out.println("Tiled maps support neither changes nor the anytime search.");
+            System.exit(0);
+        }
+        if (changes != null && optimizeOrder) {
+            System.out.println("Changes need the points in the order of the path file.");
+            System.exit(0);
+        }
+        if (changes != null) l1.replan(changes, options.containsKey("verify"));
+        else if (optimizeOrder) l1.orderedRoute();
+        else l1.aStar();
+        l1.output(args[args.length - 1], path_file);
+    }
+}
+
+/**
+ * an auxiliary class that streams the optimal path in the order of travel, pixel by pixel, with
+ * the time cost and length of every step, so that nothing has to be drawn or encoded as an image.
+ * The format depends on the file name:
+ * <p>
+ * file.geojson or file.json: a GeoJSON FeatureCollection with one LineString feature of pixel
+ * coordinates [x, y]; its properties hold the pixel size (meters) and, for every coordinate, the
+ * cumulative time (seconds) and distance (meters) from the starting point.
+ * <p>
+ * any other file: a delta-encoded binary polyline (big-endian): magic "L1RT" and version (ints),
+ * width and height of the map (ints), pixel width and height (doubles), number of pixels n (int),
+ * x and y of the first pixel (ints), and then for each of the n - 1 steps the change of x and of y
+ * (zigzag varints, so mostly one byte each) and the time cost of the step (float; travel times are
+ * stored as floats, so it is exact). Cumulative time and distance are the running sums of the step
+ * times and of the pixel width or height of every horizontal or vertical step.
+ */
+class RouteWriter {
+    /**
+     * magic number ("L1RT") and format version of binary routes
+     */
+    static final int MAGIC = 0x4C315254, VERSION = 1;
+
+    /**
+     * the map with the optimal path (see lab1.pathLegs)
+     */
+    final lab1 map;
+
+    RouteWriter(lab1 map) {
+        this.map = map;
+    }
+
+    /**
+     * This method writes the route.
+     *
+     * @param file the file name (see the class for the formats)
+     * @throws IOException if the file cannot be written
+     */
+    void write(String file) throws IOException {
+        String name = file.toLowerCase();
+        try {
+            if (name.endsWith(".geojson") || name.endsWith(".json")) {
+                try (Writer output = new BufferedWriter(new FileWriter(file))) {
+                    writeGeoJson(output);
+                }
+            } else {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                    writeBinary(output);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            // thrown while visiting the pixels
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * This method visits the pixels of the route in the order of travel. Every leg after the first
+     * starts where the previous one ends, so that pixel is visited once.
+     *
+     * @param action what to do with every pixel
+     */
+    void forEachPixel(java.util.function.IntConsumer action) {
+        int last = -1;
+        for (int[] leg : map.pathLegs) {
+            for (int i = leg.length - 1; i >= 0; i--) {
+                if (leg[i] == last && i == leg.length - 1) continue;
+                action.accept(leg[i]);
+                last = leg[i];
+            }
+        }
+    }
+
+    /**
+     * @param from a pixel
+     * @param to   the next pixel of the route
+     * @return the real-world length of the step between them
+     */
+    private double stepLength(int from, int to) {
+        return from == to ? 0.0 : from / map.x == to / map.x ? map.dx : map.dy;
+    }
+
+    private void writeBinary(DataOutputStream output) throws IOException {
+        int[] count = {0};
+        forEachPixel(node -> count[0]++);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(map.x);
+        output.writeInt(map.y);
+        output.writeDouble(map.dx);
+        output.writeDouble(map.dy);
+        output.writeInt(count[0]);
+        int[] last = {-1};
+        forEachPixel(node -> {
+            try {
+                if (last[0] < 0) {
+                    output.writeInt(node % map.x);
+                    output.writeInt(node / map.x);
+                } else {
+                    writeVarint(output, node % map.x - last[0] % map.x);
+                    writeVarint(output, node / map.x - last[0] / map.x);
+                    output.writeFloat((float) map.stepTime(last[0], node));
+                }
+                last[0] = node;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * This method writes a signed number as a zigzag varint: 0, -1, 1, -2, ... become 0, 1, 2, 3, ...,
+     * written 7 bits at a time with the high bit set on all bytes but the last.
+     *
+     * @param output the stream
+     * @param value  the number
+     * @throws IOException if it cannot be written
+     */
+    static void writeVarint(DataOutputStream output, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            output.writeByte(zigzag & 0x7F | 0x80);
+            zigzag >>>= 7;
+        }
+        output.writeByte(zigzag);
+    }
+
+    private void writeGeoJson(Writer output) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("{\"type\": \"FeatureCollection\", \"features\": [{\"type\": \"Feature\", \"geometry\": {\"type\": \"LineString\", \"coordinates\": [");
+        int[] last = {-1};
+        double[] sums = {0.0, 0.0};
+        forEachPixel(node -> {
+            text.append(last[0] < 0 ? "" : ", ").append('[').append(node % map.x).append(", ").append(node / map.x).append(']');
+            last[0] = node;
+            flush(text, output);
+        });
+        text.append(String.format("]}, \"properties\": {\"pixelSize\": [%s, %s], \"times\": [", Json.write(map.dx), Json.write(map.dy)));
+        last[0] = -1;
+        forEachPixel(node -> {
+            if (last[0] >= 0) sums[0] += map.stepTime(last[0], node);
+            text.append(last[0] < 0 ? "" : ", ").append(String.format("%.3f", sums[0]));
+            last[0] = node;
+            flush(text, output);
+        });
+        text.append("], \"distances\": [");
+        last[0] = -1;
+        forEachPixel(node -> {
+            if (last[0] >= 0) sums[1] += stepLength(last[0], node);
+            text.append(last[0] < 0 ? "" : ", ").append(String.format("%.2f", sums[1]));
+            last[0] = node;
+            flush(text, output);
+        });
+        text.append("]}}]}\n");
+        output.write(text.toString());
+    }
+
+    /**
+     * This method passes the text written so far on to the stream once it is long enough.
+     *
+     * @param text   the text not written yet (emptied)
+     * @param output the stream
+     */
+    private static void flush(StringBuilder text, Writer output) {
+        if (text.length() < 8192) return;
+        try {
+            output.write(text.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        text.setLength(0);
+    }
+}
+
+/**
+ * an auxiliary class to measure the stages of solving a testcase without JVM startup and image
+ * decoding: a testcase directory (terrain.png, mpp.txt, and path files) is loaded once, and then
+ * every stage runs for some warmup iterations, which are discarded, and some measured iterations.
+ * An iteration repeats the stage until the iteration time has passed, so short stages are timed
+ * over many runs. Every stage prints the mean time per run with the standard deviation over the
+ * measured iterations, and the bytes the thread allocated per run.
+ * <p>
+ * Stages: cost (cost() for the east step of every pixel), costs (prepareCosts()), heuristic
+ * (heuristic() towards the second point of every path file), legs (every leg of every path file,
+ * one by one), and output (drawing the routes and encoding the image, as output() does).
+ */
+class Benchmark {
+    /**
+     * all stages
+     */
+    static final List<String> STAGES = List.of("cost", "costs", "heuristic", "legs", "output");
+
+    /**
+     * number of warmup and of measured iterations, and the time of an iteration in nanoseconds
+     */
+    final int warmup, iterations;
+    final long iterationTime;
+
+    /**
+     * stages to measure
+     */
+    final List<String> stages;
+
+    /**
+     * allocation counter of the current thread
+     */
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * a value every stage contributes to, so that the JIT compiler cannot drop the work
+     */
+    double sink;
+
+    Benchmark(int warmup, int iterations, long iterationTime, List<String> stages) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.iterationTime = iterationTime;
+        this.stages = stages;
+    }
+
+    /**
+     * This method measures all stages of a testcase.
+     *
+     * @param directory the testcase directory
+     * @param map       its terrain (loaded)
+     */
+    void run(File directory, lab1 map) {
+        String name = directory.getName();
+        File[] files = directory.listFiles((dir, file) -> file.endsWith(".txt") && !file.equals("mpp.txt") && !file.equals("readme.txt"));
+        if (files == null) return;
+        Arrays.sort(files);
+        if (stages.contains("cost")) {
+            measure(name + " cost", () -> {
+                double total = 0.0;
+                for (int j = 0; j < map.y; j++) {
+                    for (int i = 0; i + 1 < map.x; i++) total += map.cost(i, j, i + 1, j);
+                }
+                sink += total;
+            });
+        }
+        if (stages.contains("costs")) measure(name + " costs", () -> {
+            map.prepareCosts();
+            sink += map.eastCost[0];
+        });
+        for (File file : files) {
+            List<int[]> stops = lab1.readPoints(file.getPath());
+            String route = name + "/" + file.getName().substring(0, file.getName().length() - 4);
+            if (stops.size() < 2) continue;
+            if (stages.contains("heuristic")) {
+                int goal = map.index(stops.get(1)[0], stops.get(1)[1]);
+                double[] h = new double[map.x * map.y];
+                measure(route + " heuristic", () -> {
+                    Arrays.fill(h, 10000000.0);
+                    h[goal] = 0.0;
+                    map.heuristic(h);
+                    sink += h[0];
+                });
+            }
+            List<int[]> legs = new ArrayList<>();
+            for (int leg = 0; leg < stops.size() - 1; leg++) {
+                int index = leg;
+                if (stages.contains("legs")) measure(route + " leg " + (leg + 1), () -> sink += map.solveLeg(stops, index, map.search, null, null).length);
+                legs.add(map.solveLeg(stops, leg, map.search, null, null));
+            }
+            if (stages.contains("output")) {
+                measure(route + " output", () -> {
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    try {
+                        ImageIO.write(map.render(stops, legs), "png", png);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    sink += png.size();
+                });
+            }
+        }
+    }
+
+    /**
+     * This method measures one stage and prints its mean time per run, the standard deviation over
+     * the measured iterations, and the bytes allocated per run.
+     *
+     * @param name  name of the stage
+     * @param stage the stage
+     */
+    void measure(String name, Runnable stage) {
+        double[] times = new double[iterations];
+        long runs = 0, allocated = 0;
+        for (int iteration = -warmup; iteration < iterations; iteration++) {
+            long count = 0, bytes = threads.getCurrentThreadAllocatedBytes(), start = System.nanoTime(), elapsed;
+            do {
+                stage.run();
+                count++;
+            } while ((elapsed = System.nanoTime() - start) < iterationTime);
+            bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+            if (iteration < 0) continue;
+            times[iteration] = elapsed / 1e6 / count;
+            runs += count;
+            allocated += bytes;
+        }
+        double mean = 0.0, deviation = 0.0;
+        for (double time : times) mean += time / iterations;
+        for (double time : times) deviation += (time - mean) * (time - mean) / Math.max(1, iterations - 1);
+        System.out.printf("%-36s %12.4f +- %.4f ms/op %14.1f KB/op %10d ops%n",
+                name, mean, Math.sqrt(deviation), allocated / 1024.0 / Math.max(1, runs), runs);
+    }
+}
+
+/**
+ * a JDK Flight Recorder event for every solved leg, with the statistics of its search. Events cost
+ * next to nothing while no recording is running, so they are always recorded (for example with
+ * java -XX:StartFlightRecording:filename=lab1.jfr lab1.java ...; then jfr print --events lab1.Leg
+ * lab1.jfr). The same objects give the JSON statistics of --stats and of server queries.
+ */
+@Name("lab1.Leg")
+@Label("Route Leg")
+@Category("lab1")
+@Description("One leg of a route solved by lab1")
+@StackTrace(false)
+class LegEvent extends Event {
+    /**
+     * number of the leg (from 1) and its points
+     */
+    @Label("Leg")
+    int leg;
+    @Label("Start X")
+    int startX;
+    @Label("Start Y")
+    int startY;
+    @Label("Goal X")
+    int goalX;
+    @Label("Goal Y")
+    int goalY;
+
+    /**
+     * how the leg was solved (A*, bidirectional, hierarchical, anytime, or cached)
+     */
+    @Label("Search")
+    String search;
+
+    /**
+     * time spent on the leg, and on preparing its heuristic
+     */
+    @Label("Wall Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long wallTime;
+    @Label("Heuristic Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long heuristicTime;
+
+    /**
+     * pixels expanded, entries added to or lowered in the open list, entries taken from the open
+     * list that were not expanded (stale duplicates), and the largest size of the open list (the
+     * largest peak of any single open list when a leg uses several, as in bidirectional and
+     * hierarchical searches, the same as OpenList.addCounters)
+     */
+    @Label("Expanded")
+    long expanded;
+    @Label("Generated")
+    long generated;
+    @Label("Stale Pops")
+    long stalePops;
+    @Label("Peak Open List")
+    long peakOpen;
+
+    /**
+     * time cost of the route of the leg (seconds)
+     */
+    @Label("Time Cost")
+    double timeCost;
+
+    /**
+     * @param stops the points to visit
+     * @param leg   index of the starting point among them
+     */
+    LegEvent(List<int[]> stops, int leg) {
+        this.leg = leg + 1;
+        startX = stops.get(leg)[0];
+        startY = stops.get(leg)[1];
+        goalX = stops.get(leg + 1)[0];
+        goalY = stops.get(leg + 1)[1];
+    }
+
+    /**
+     * This method adds the counters of a search state.
+     *
+     * @param state the search state after the search
+     */
+    void count(SearchState state) {
+        heuristicTime += state.heuristicTime;
+        expanded += state.expanded;
+        generated += state.queue.pushes + state.queue.decreases;
+        stalePops += Math.max(0, state.queue.pops - state.expanded);
+        peakOpen = Math.max(peakOpen, state.queue.peak);
+    }
+
+    /**
+     * This method completes and records the event.
+     *
+     * @param map    the terrain
+     * @param route  the route of the leg
+     * @param wall   time spent on the leg in nanoseconds
+     * @param events statistics of every leg (null if they are not kept)
+     */
+    void finish(lab1 map, int[] route, long wall, LegEvent[] events) {
+        wallTime = wall;
+        if (events != null || shouldCommit()) timeCost = map.time(route);
+        commit();
+        if (events != null) events[leg - 1] = this;
+    }
+
+    /**
+     * @return the statistics as a JSON object (times in milliseconds, time cost in seconds)
+     */
+    String json() {
+        return String.format(Locale.ROOT, "{\"leg\": %d, \"from\": [%d, %d], \"to\": [%d, %d], \"search\": %s, \"wallTime\": %.3f, "
+                        + "\"heuristicTime\": %.3f, \"expanded\": %d, \"generated\": %d, \"stalePops\": %d, \"peakOpen\": %d, \"time\": %s}",
+                leg, startX, startY, goalX, goalY, Json.write(search), wallTime / 1e6, heuristicTime / 1e6,
+                expanded, generated, stalePops, peakOpen, Json.write(timeCost));
+    }
+}
+
+/**
+ * an auxiliary class to answer route queries on maps that stay loaded. Every line of input is one
+ * query (a JSON object), and every query is answered by one line of output (a JSON object with the
+ * same "id"), in the order in which the queries finish. Queries run concurrently on a fixed number
+ * of threads, each with its own search state.
+ * <p>
+ * A query: {"id": 1, "map": "normal", "points": [[230, 327], [276, 279]], "path": true, "image": "out"}
+ * ("map" may be left out if only one map is loaded, "path" defaults to true, "image" is optional and
+ * names a PNG file inside the image directory of the server)
+ * <p>
+ * "weight" (at least 1) and "deadline" (milliseconds) ask for the anytime search, which answers with
+ * the suboptimality "bound" of the route as well. "stats": true adds the statistics of every leg.
+ * <p>
+ * A change: {"id": 2, "map": "normal", "speeds": {"248 148 18": 3.0}} is answered by the new version
+ * of the map once the queries running on it have finished: {"id": 2, "version": 1}.
+ * <p>
+ * An answer: {"id": 1, "distance": 1234.5, "time": 292.4, "latency": 3.21, "path": [[230, 327], ...]}
+ * (distance in meters, time in seconds, latency in milliseconds from reading the query to answering
+ * it) or {"id": 1, "error": "..."}.
+ */
+class RouteServer {
+    /**
+     * the loaded maps by name
+     */
+    final Map<String, lab1> maps;
+
+    /**
+     * the threads answering queries
+     */
+    final ExecutorService pool;
+
+    /**
+     * latency of every answered query in milliseconds
+     */
+    final List<Double> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * the directory the images asked for by queries are written to (no image may be written outside of it)
+     */
+    final Path imageDirectory;
+
+    RouteServer(Map<String, lab1> maps, int threads, Path imageDirectory) {
+        this.maps = maps;
+        this.imageDirectory = imageDirectory.toAbsolutePath().normalize();
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * This method accepts connections on a local port; every connection is served like standard input.
+     *
+     * @param port the port
+     * @throws IOException if the port cannot be opened
+     */
+    void listen(int port) throws IOException {
+        try (ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + socket.getLocalSocketAddress());
+            while (true) {
+                Socket client = socket.accept();
+                Thread thread = new Thread(() -> {
+                    try (client) {
+                        serve(new BufferedReader(new InputStreamReader(client.getInputStream())),
+                                new PrintWriter(new OutputStreamWriter(client.getOutputStream())));
+                    } catch (IOException e) {
+                        System.err.println("IO errors: " + e.getMessage());
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * This method answers every query of an input and then prints a latency summary.
+     *
+     * @param input  the queries, one per line
+     * @param output the answers, one per line
+     * @throws IOException if the input cannot be read
+     */
+    void serve(BufferedReader input, PrintWriter output) throws IOException {
+        List<Future<?>> pending = new ArrayList<>();
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (line.isBlank()) continue;
+            String query = line;
+            long received = System.nanoTime();
+            pending.add(pool.submit(() -> {
+                String answer = answer(query, received);
+                synchronized (output) {
+                    output.println(answer);
+                    output.flush();
+                }
+            }));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("A query failed: " + e);
+            }
+        }
+        System.err.println(summary());
+    }
+
+    /**
+     * This method answers one query.
+     *
+     * @param line     the query
+     * @param received when the query was read (System.nanoTime())
+     * @return the answer
+     */
+    String answer(String line, long received) {
+        Object id = null;
+        try {
+            if (!(Json.parse(line) instanceof Map<?, ?> query)) throw new IllegalArgumentException("a query must be an object");
+            id = query.get("id");
+            String name = query.containsKey("map") ? String.valueOf(query.get("map"))
+                    : maps.size() == 1 ? maps.keySet().iterator().next() : null;
+            lab1 map = maps.get(name);
+            if (map == null) throw new IllegalArgumentException("unknown map: " + name);
+
+            // changes wait for running queries and invalidate cached legs
+            if (query.get("speeds") instanceof Map<?, ?> changes) {
+                Map<String, Double> speeds = new HashMap<>();
+                for (Map.Entry<?, ?> entry : changes.entrySet()) {
+                    if (!(entry.getValue() instanceof Double speed) || speed < 0) {
+                        throw new IllegalArgumentException("\"speeds\" must map terrain colors to speeds");
+                    }
+                    speeds.put(String.valueOf(entry.getKey()), speed);
+                }
+                map.lock.writeLock().lock();
+                try {
+                    map.setSpeeds(speeds);
+                    return "{\"id\": " + Json.write(id) + ", \"version\": " + map.version + "}";
+                } finally {
+                    map.lock.writeLock().unlock();
+                }
+            }
+
+            // the points to visit
+            if (!(query.get("points") instanceof List<?> points) || points.size() < 2) {
+                throw new IllegalArgumentException("\"points\" must be a list of at least two [x, y] pairs");
+            }
+            List<int[]> stops = new ArrayList<>();
+            for (Object point : points) {
+                // pixel coordinates are whole numbers; fractions are not rounded silently
+                if (!(point instanceof List<?> pair) || pair.size() != 2 || !(pair.get(0) instanceof Double px)
+                        || !(pair.get(1) instanceof Double py) || px % 1 != 0 || py % 1 != 0) {
+                    throw new IllegalArgumentException("\"points\" must be a list of at least two [x, y] pairs");
+                }
+                if (px < 0 || px >= map.x || py < 0 || py >= map.y) {
+                    throw new IllegalArgumentException("point outside of the map: [" + px.intValue() + ", " + py.intValue() + "]");
+                }
+                stops.add(new int[]{px.intValue(), py.intValue()});
+            }
+
+            // an anytime search if the query has a deadline or weight
+            double weight = query.get("weight") instanceof Double w ? w : 0.0;
+            long deadline = query.get("deadline") instanceof Double d ? (long) (d * 1e6) : 0;
+            if (deadline > 0 && weight == 0.0) weight = 3.0;
+            if ((weight != 0.0 && !(Double.isFinite(weight) && weight >= 1.0)) || deadline < 0) {
+                throw new IllegalArgumentException("invalid weight or deadline");
+            }
+            if (weight > 0 && map.tiles != null) throw new IllegalArgumentException("tiled maps do not support the anytime search");
+
+            // solve every leg with the search state of this thread
+            LegEvent[] events = Boolean.TRUE.equals(query.get("stats")) ? new LegEvent[stops.size() - 1] : null;
+            List<int[]> legs = new ArrayList<>();
+            double distance = 0.0, time = 0.0, bound = 1.0;
+            map.lock.readLock().lock();
+            try {
+                if (weight > 0) {
+                    double[] bounds = new double[stops.size() - 1];
+                    legs.addAll(map.anytime(stops, weight, deadline, bounds, null, events));
+                    for (double b : bounds) bound = Math.max(bound, b);
+                } else {
+                    for (int leg = 0; leg < stops.size() - 1; leg++) legs.add(map.solveLeg(stops, leg, map.threadSearch.get(), null, events));
+                }
+                for (int[] route : legs) {
+                    distance += map.length(route);
+                    time += map.time(route);
+                }
+                if (query.get("image") instanceof String image) {
+                    Path file = imageDirectory.resolve(image + ".png").normalize();
+                    if (image.isBlank() || !file.startsWith(imageDirectory)) {
+                        throw new IllegalArgumentException("\"image\" must name a file inside the image directory");
+                    }
+                    BufferedImage canvas = map.render(stops, legs);
+                    if (canvas == null) throw new IllegalArgumentException("the map is too large to be drawn");
+                    ImageIO.write(canvas, "png", file.toFile());
+                }
+            } finally {
+                map.lock.readLock().unlock();
+            }
+
+            StringBuilder answer = new StringBuilder("{\"id\": ").append(Json.write(id));
+            answer.append(", \"distance\": ").append(distance).append(", \"time\": ").append(time);
+            if (weight > 0) answer.append(", \"bound\": ").append(bound);
+            double latency = (System.nanoTime() - received) / 1e6;
+            latencies.add(latency);
+            answer.append(", \"latency\": ").append(String.format(Locale.ROOT, "%.3f", latency));
+            if (events != null) {
+                answer.append(", \"stats\": [");
+                for (int i = 0; i < events.length; i++) answer.append(i == 0 ? "" : ", ").append(events[i].json());
+                answer.append(']');
+            }
+            if (!Boolean.FALSE.equals(query.get("path"))) {
+                answer.append(", \"path\": [");
+                boolean first = true;
+                for (int[] route : legs) {
+                    for (int i = route.length - 1; i >= 0; i--) {
+                        // consecutive legs share their point
+                        if (i == route.length - 1 && !first) continue;
+                        answer.append(first ? "" : ", ").append('[').append(route[i] % map.x).append(", ").append(route[i] / map.x).append(']');
+                        first = false;
+                    }
+                }
+                answer.append(']');
+            }
+            return answer.append('}').toString();
+        } catch (RuntimeException | IOException e) {
+            // every query is answered, even if it failed unexpectedly
+            String message = e instanceof IllegalArgumentException && e.getMessage() != null ? e.getMessage() : e.toString();
+            return "{\"id\": " + Json.write(id) + ", \"error\": " + Json.write(message) + "}";
+        }
+    }
+
+    /**
+     * @return number of answered queries, their mean, median, and 99th percentile latency, and cache counters
+     */
+    String summary() {
+        List<Double> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        StringBuilder summary = new StringBuilder();
+        if (sorted.isEmpty()) summary.append("0 queries answered");
+        else {
+            Collections.sort(sorted);
+            double mean = sorted.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+            summary.append(String.format("%d queries answered, latency: mean %.3f ms, median %.3f ms, 99th percentile %.3f ms",
+                    sorted.size(), mean, sorted.get(sorted.size() / 2), sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1)));
+        }
+        for (Map.Entry<String, lab1> map : maps.entrySet()) {
+            LegCache cache = map.getValue().cache;
+            if (cache != null) summary.append(String.format("%ncache of %s: %d hits, %d misses", map.getKey(), cache.hits, cache.misses));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * This method stops the threads answering queries.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+}
+
+/**
+ * an auxiliary class to cache solved legs by starting and visiting pixel, evicting the least
+ * recently used leg when it is full. A route is stored compactly as its visiting pixel and one
+ * 2-bit direction per step, together with the version of the map it was solved on; legs of an
+ * older version are never returned.
+ */
+class LegCache {
+    /**
+     * the most legs kept
+     */
+    final int capacity;
+
+    /**
+     * cached legs by starting pixel (high 32 bits) and visiting pixel (low 32 bits), least recently used first
+     */
+    final LinkedHashMap<Long, Leg> legs;
+
+    /**
+     * number of lookups that found a leg and that did not
+     */
+    long hits, misses;
+
+    /**
+     * a cached leg: the version of the map, the number of steps, and the directions from the
+     * visiting pixel back to the starting pixel (four per byte)
+     */
+    static class Leg {
+        final long version;
+        final int steps;
+        final byte[] moves;
+
+        Leg(long version, int steps, byte[] moves) {
+            this.version = version;
+            this.steps = steps;
+            this.moves = moves;
+        }
+    }
+
+    LegCache(int capacity) {
+        this.capacity = capacity;
+        legs = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Leg> eldest) {
+                return size() > LegCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param version version of the map
+     * @param start   index of the starting pixel
+     * @param goal    index of the visiting pixel
+     * @param width   width of the map
+     * @return the cached route from the visiting pixel back to the starting pixel (null if there is none)
+     */
+    synchronized int[] get(long version, int start, int goal, int width) {
+        Leg leg = legs.get((long) start << 32 | goal);
+        if (leg == null || leg.version != version) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int[] route = new int[leg.steps + 1];
+        route[0] = goal;
+        for (int i = 0; i < leg.steps; i++) {
+            int direction = leg.moves[i >> 2] >> ((i & 3) << 1) & 3;
+            route[i + 1] = route[i] + switch (direction) {
+                case lab1.EAST -> 1;
+                case lab1.WEST -> -1;
+                case lab1.SOUTH -> width;
+                default -> -width;
+            };
+        }
+        return route;
+    }
+
+    /**
+     * @param version version of the map the route was solved on
+     * @param start   index of the starting pixel
+     * @param goal    index of the visiting pixel
+     * @param route   the route from the visiting pixel back to the starting pixel
+     * @param width   width of the map
+     */
+    synchronized void put(long version, int start, int goal, int[] route, int width) {
+        byte[] moves = new byte[(route.length + 2) / 4];
+        for (int i = 0; i + 1 < route.length; i++) {
+            int from = route[i], to = route[i + 1];
+            int direction = to / width == from / width ? (to > from ? lab1.EAST : lab1.WEST) : (to > from ? lab1.SOUTH : lab1.NORTH);
+            moves[i >> 2] |= (byte) (direction << ((i & 3) << 1));
+        }
+        legs.put((long) start << 32 | goal, new Leg(version, route.length - 1, moves));
+    }
+
+    /**
+     * This method drops all legs solved on versions older than the given one.
+     *
+     * @param version the current version of the map
+     */
+    synchronized void invalidate(long version) {
+        legs.values().removeIf(leg -> leg.version != version);
+    }
+}
+
+/**
+ * an auxiliary class to read and write the small subset of JSON used by route queries: objects
+ * become maps, arrays become lists, numbers become doubles, and true, false, and null become
+ * Boolean values and null.
+ */
+class Json {
+    /**
+     * the text being parsed
+     */
+    final String text;
+
+    /**
+     * position of the next character
+     */
+    int position;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text a JSON value
+     * @return the value
+     * @throws IllegalArgumentException if the text is no valid JSON
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipSpaces();
+        if (json.position != text.length()) throw json.error();
+        return value;
+    }
+
+    /**
+     * @param value a string, number, Boolean value, or null
+     * @return the value as JSON
+     */
+    static String write(Object value) {
+        if (value == null || value instanceof Boolean) return String.valueOf(value);
+        if (value instanceof Double number) {
+            return number == Math.rint(number) && Math.abs(number) < 1e15 ? String.valueOf(number.longValue()) : number.toString();
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toString().toCharArray()) {
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < ' ') quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private Object value() {
+        skipSpaces();
+        if (position == text.length()) throw error();
+        char c = text.charAt(position);
+        if (c == '{') {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipSpaces();
+            if (consume('}')) return object;
+            do {
+                skipSpaces();
+                if (position == text.length() || text.charAt(position) != '"') throw error();
+                String key = string();
+                skipSpaces();
+                if (!consume(':')) throw error();
+                object.put(key, value());
+                skipSpaces();
+            } while (consume(','));
+            if (!consume('}')) throw error();
+            return object;
+        }
+        if (c == '[') {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipSpaces();
+            if (consume(']')) return array;
+            do {
+                array.add(value());
+                skipSpaces();
+            } while (consume(','));
+            if (!consume(']')) throw error();
+            return array;
+        }
+        if (c == '"') return string();
+        for (String literal : new String[]{"true", "false", "null"}) {
+            if (text.startsWith(literal, position)) {
+                position += literal.length();
+                return literal.equals("null") ? null : Boolean.valueOf(literal);
+            }
+        }
+        int start = position;
+        while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) position++;
+        try {
+            return Double.parseDouble(text.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw error();
+        }
+    }
+
+    private String string() {
+        StringBuilder string = new StringBuilder();
+        position++;
+        while (position < text.length()) {
+            char c = text.charAt(position++);
+            if (c == '"') return string.toString();
+            if (c != '\\') {
+                string.append(c);
+                continue;
+            }
+            if (position == text.length()) break;
+            c = text.charAt(position++);
+            switch (c) {
+                case 'b' -> string.append('\b');
+                case 'f' -> string.append('\f');
+                case 'n' -> string.append('\n');
+                case 'r' -> string.append('\r');
+                case 't' -> string.append('\t');
+                case 'u' -> {
+                    if (position + 4 > text.length()) throw error();
+                    try {
+                        string.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error();
+                    }
+                    position += 4;
+                }
+                default -> string.append(c);
+            }
+        }
+        throw error();
+    }
+
+    private boolean consume(char c) {
+        if (position < text.length() && text.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+    }
+
+    private IllegalArgumentException error() {
+        return new IllegalArgumentException("invalid JSON at position " + position);
+    }
+}
+
+/**
+ * an auxiliary interface for the heuristic used during A* search. An instance is prepared for one
+ * pair of starting and visiting pixels and estimates the time cost from any pixel to the visiting one.
+ */
+interface Heuristic {
+    /**
+     * all available heuristics
+     */
+    List<String> MODES = List.of("euclidean", "manhattan", "dijkstra", "landmarks", "sweep");
+
+    /**
+     * This method estimates the time cost from a pixel to the visiting pixel.
+     *
+     * @param node index of the pixel
+     * @return the estimated time cost
+     */
+    double estimate(int node);
+
+    /**
+     * This method prepares a heuristic by its name.
+     *
+     * @param mode  one of MODES
+     * @param map   the terrain
+     * @param start index of the starting pixel
+     * @param goal  index of the visiting pixel
+     * @return the heuristic
+     */
+    static Heuristic create(String mode, lab1 map, int start, int goal) {
+        if (map.tiles != null && !mode.equals("euclidean") && !mode.equals("manhattan")) {
+            throw new IllegalArgumentException("The " + mode + " heuristic needs the whole map in memory");
+        }
+        return switch (mode) {
+            case "euclidean" -> new DistanceHeuristic(map, goal, false);
+            case "manhattan" -> new DistanceHeuristic(map, goal, true);
+            case "dijkstra" -> new DijkstraHeuristic(map, start, goal);
+            case "landmarks" -> new LandmarkHeuristic(map, goal);
+            case "sweep" -> new SweepHeuristic(map, goal);
+            default -> throw new IllegalArgumentException("Unknown heuristic: " + mode);
+        };
+    }
+}
+
+/**
+ * a closed-form heuristic: the real-world distance to the visiting pixel (straight-line or
+ * along the grid) divided by the highest possible speed. It is admissible and consistent.
+ */
+class DistanceHeuristic implements Heuristic {
+    /**
+     * width of the terrain, coordinates of the visiting pixel, and the pixel size divided by the highest speed
+     */
+    final int width, xGoal, yGoal;
+    final double xTime, yTime;
+
+    /**
+     * if the distance is measured along the grid instead of as the crow flies
+     */
+    final boolean manhattan;
+
+    DistanceHeuristic(lab1 map, int goal, boolean manhattan) {
+        width = map.x;
+        xGoal = goal % width;
+        yGoal = goal / width;
+        xTime = map.dx / map.maxSpeed();
+        yTime = map.dy / map.maxSpeed();
+        this.manhattan = manhattan;
+    }
+
+    @Override
+    public double estimate(int node) {
+        double tx = Math.abs(node % width - xGoal) * xTime, ty = Math.abs(node / width - yGoal) * yTime;
+        return manhattan ? tx + ty : Math.sqrt(tx * tx + ty * ty);
+    }
+}
+
+/**
+ * an exact heuristic: a Dijkstra search from the visiting pixel over reversed edges, which stops
+ * as soon as the starting pixel is settled. Settled pixels know their exact time cost to the
+ * visiting pixel; every other pixel is at least as far away as the starting pixel, so that
+ * distance is used for them (this keeps the heuristic consistent).
+ */
+class DijkstraHeuristic implements Heuristic {
+    /**
+     * exact time costs of settled pixels
+     */
+    final double[] h;
+
+    /**
+     * settled pixels
+     */
+    final boolean[] settled;
+
+    /**
+     * the value used for pixels that were not settled
+     */
+    final double radius;
+
+    DijkstraHeuristic(lab1 map, int start, int goal) {
+        int width = map.x, height = map.y;
+        h = new double[width * height];
+        settled = new boolean[width * height];
+        Arrays.fill(h, Double.POSITIVE_INFINITY);
+        NodeHeap queue = new NodeHeap(1024);
+        h[goal] = 0.0;
+        queue.add(goal, 0.0);
+        int current, xTemp, yTemp;
+        while (queue.size() != 0) {
+            current = queue.poll();
+            if (settled[current]) continue;
+            settled[current] = true;
+            if (current == start) break;
+            xTemp = current % width;
+            yTemp = current / width;
+
+            // the time cost of an adjacent pixel is the cost of moving from it to the current pixel
+            if (xTemp + 1 < width) relax(queue, current, current + 1, map.westCost[current + 1]);
+            if (xTemp - 1 >= 0) relax(queue, current, current - 1, map.eastCost[current - 1]);
+            if (yTemp + 1 < height) relax(queue, current, current + width, map.northCost[current + width]);
+            if (yTemp - 1 >= 0) relax(queue, current, current - width, map.southCost[current - width]);
+        }
+        radius = h[start];
+    }
+
+    private void relax(NodeHeap queue, int current, int adjacent, double cost) {
+        if (settled[adjacent]) return;
+        double t = h[current] + cost;
+        if (t < h[adjacent]) {
+            h[adjacent] = t;
+            queue.add(adjacent, t);
+        }
+    }
+
+    @Override
+    public double estimate(int node) {
+        return settled[node] ? h[node] : radius;
+    }
+}
+
+/**
+ * the original heuristic, which relaxes heuristic values over the whole grid (lab1.heuristic()).
+ * It is kept for comparison with the previous results.
+ */
+class SweepHeuristic implements Heuristic {
+    /**
+     * heuristic values calculated by the sweep
+     */
+    final double[] h;
+
+    SweepHeuristic(lab1 map, int goal) {
+        // reset all heuristic values
+        h = new double[map.x * map.y];
+        Arrays.fill(h, 10000000.0);
+
+        // h(n) of the visiting point is 0
+        h[goal] = 0.0;
+
+        // calculate heuristic values for every point (pixel)
+        map.heuristic(h);
+    }
+
+    @Override
+    public double estimate(int node) {
+        return h[node];
+    }
+}
+
+/**
+ * the ALT heuristic (A*, landmarks, triangle inequality): for every landmark L, the time cost from
+ * a pixel v to the visiting pixel t is at least d(v, L) - d(t, L) and at least d(L, t) - d(L, v).
+ * The largest of these bounds and the straight-line bound is admissible and consistent, and costs
+ * O(K) per pixel.
+ */
+class LandmarkHeuristic implements Heuristic {
+    /**
+     * the landmark distance tables
+     */
+    final Landmarks landmarks;
+
+    /**
+     * the straight-line bound, which is tighter where no landmark lies behind the visiting pixel
+     */
+    final DistanceHeuristic distance;
+
+    /**
+     * time costs from every landmark to the visiting pixel and from the visiting pixel to every landmark
+     */
+    final float[] fromLandmark, toLandmark;
+
+    LandmarkHeuristic(lab1 map, int goal) {
+        landmarks = map.landmarks;
+        distance = new DistanceHeuristic(map, goal, false);
+        fromLandmark = new float[landmarks.pixels.length];
+        toLandmark = new float[landmarks.pixels.length];
+        for (int i = 0; i < landmarks.pixels.length; i++) {
+            fromLandmark[i] = landmarks.from[i][goal];
+            toLandmark[i] = landmarks.to[i][goal];
+        }
+    }
+
+    @Override
+    public double estimate(int node) {
+        double h = distance.estimate(node);
+        for (int i = 0; i < fromLandmark.length; i++) {
+            float to = landmarks.to[i][node], from = landmarks.from[i][node];
+
+            // the tables are rounded to floats, so one unit in the last place is given up for admissibility
+            h = Math.max(h, (double) to - toLandmark[i] - Math.ulp(Math.max(to, toLandmark[i])));
+            h = Math.max(h, (double) fromLandmark[i] - from - Math.ulp(Math.max(from, fromLandmark[i])));
+        }
+        return h;
+    }
+}
+
+/**
+ * an auxiliary class to store the landmark distance tables of the ALT heuristic: exact time costs
+ * from every landmark to every pixel and from every pixel to every landmark. Landmarks are chosen
+ * one by one as the pixel farthest from all landmarks chosen so far, which spreads them along the
+ * border of the map. The tables are saved next to the map and reused while the map is unchanged.
+ */
+class Landmarks {
+    /**
+     * magic number ("L1AL") and format version of saved landmark tables
+     */
+    static final int MAGIC = 0x4C31414C, VERSION = 1;
+
+    /**
+     * time costs of edges that cannot be crossed (see lab1.stepCost())
+     */
+    static final double BLOCKED = 1000000.0;
+
+    /**
+     * pixel of every landmark
+     */
+    int[] pixels;
+
+    /**
+     * time costs from every landmark to every pixel (from) and from every pixel to every landmark (to)
+     */
+    float[][] from, to;
+
+    /**
+     * This method reads the landmark tables saved next to the map, or calculates and saves them if
+     * there are none that match the map and the number of landmarks.
+     *
+     * @param map   the terrain
+     * @param count number of landmarks
+     * @return the landmark tables
+     */
+    static Landmarks open(lab1 map, int count) {
+        Landmarks landmarks = new Landmarks();
+        File file = new File(map.terrainFile + ".alt");
+        long fingerprint = map.fingerprint();
+        long time = System.nanoTime();
+        if (file.isFile() && landmarks.read(file, fingerprint, count, map.x * map.y)) {
+            if (map.report) System.out.printf("landmarks: read %d landmarks in %.2f ms%n", count, (System.nanoTime() - time) / 1e6);
+            return landmarks;
+        }
+        landmarks.build(map, count);
+        if (map.report) System.out.printf("landmarks: built %d landmarks in %.2f ms%n", count, (System.nanoTime() - time) / 1e6);
+        landmarks.write(file, fingerprint);
+        return landmarks;
+    }
+
+    /**
+     * This method chooses the landmarks and runs a forward and a backward Dijkstra search from each.
+     *
+     * @param map   the terrain
+     * @param count number of landmarks
+     */
+    void build(lab1 map, int count) {
+        int size = map.x * map.y;
+        pixels = new int[count];
+        from = new float[count][];
+        to = new float[count][];
+
+        // smallest time cost from any landmark so far (the first landmark is farthest from the top left corner)
+        float[] nearest = dijkstra(map, 0, false);
+        for (int i = 0; i < count; i++) {
+            int farthest = 0;
+            for (int node = 0; node < size; node++) {
+                if (nearest[node] < BLOCKED && nearest[node] > nearest[farthest]) farthest = node;
+            }
+            pixels[i] = farthest;
+            from[i] = dijkstra(map, farthest, false);
+            to[i] = dijkstra(map, farthest, true);
+            if (i == 0) nearest = from[0].clone();
+            else for (int node = 0; node < size; node++) nearest[node] = Math.min(nearest[node], from[i][node]);
+        }
+    }
+
+    /**
+     * This method runs Dijkstra's algorithm over the whole map.
+     *
+     * @param map     the terrain
+     * @param source  index of the pixel to start from
+     * @param reverse if the time costs are towards the source instead of from it
+     * @return time costs of all pixels, capped at BLOCKED (so that floats stay precise; capped
+     * bounds remain admissible and consistent)
+     */
+    static float[] dijkstra(lab1 map, int source, boolean reverse) {
+        int width = map.x, height = map.y;
+        double[] costs = new double[width * height];
+        boolean[] settled = new boolean[costs.length];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        NodeHeap queue = new NodeHeap(1024);
+        costs[source] = 0.0;
+        queue.add(source, 0.0);
+        int current, xTemp, yTemp;
+        while (queue.size() != 0) {
+            current = queue.poll();
+            if (settled[current]) continue;
+            settled[current] = true;
+            xTemp = current % width;
+            yTemp = current / width;
+            if (xTemp + 1 < width) relax(costs, settled, queue, current, current + 1, reverse ? map.westCost[current + 1] : map.eastCost[current]);
+            if (xTemp - 1 >= 0) relax(costs, settled, queue, current, current - 1, reverse ? map.eastCost[current - 1] : map.westCost[current]);
+            if (yTemp + 1 < height) relax(costs, settled, queue, current, current + width, reverse ? map.northCost[current + width] : map.southCost[current]);
+            if (yTemp - 1 >= 0) relax(costs, settled, queue, current, current - width, reverse ? map.southCost[current - width] : map.northCost[current]);
+        }
+        float[] result = new float[costs.length];
+        for (int i = 0; i < costs.length; i++) result[i] = (float) Math.min(costs[i], BLOCKED);
+        return result;
+    }
+
+    private static void relax(double[] costs, boolean[] settled, NodeHeap queue, int current, int adjacent, double cost) {
+        if (settled[adjacent]) return;
+        double t = costs[current] + cost;
+        if (t < costs[adjacent]) {
+            costs[adjacent] = t;
+            queue.add(adjacent, t);
+        }
+    }
+
+    /**
+     * This method saves the landmark tables (big-endian): magic, version (ints), fingerprint of the
+     * map (long), number of landmarks and pixels (ints), the landmark pixels (ints), and for every
+     * landmark its from and to tables (floats).
+     *
+     * @param file        the file
+     * @param fingerprint fingerprint of the map (see lab1.fingerprint())
+     */
+    void write(File file, long fingerprint) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize(pixels.length));
+            header.putInt(MAGIC).putInt(VERSION).putLong(fingerprint).putInt(pixels.length).putInt(from[0].length);
+            for (int pixel : pixels) header.putInt(pixel);
+            header.flip();
+            while (header.hasRemaining()) channel.write(header);
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (int i = 0; i < pixels.length; i++) {
+                for (float[] table : new float[][]{from[i], to[i]}) {
+                    for (int j = 0; j < table.length; j += chunk.capacity() / 4) {
+                        int length = Math.min(chunk.capacity() / 4, table.length - j);
+                        chunk.clear();
+                        chunk.asFloatBuffer().put(table, j, length);
+                        chunk.limit(4 * length);
+                        while (chunk.hasRemaining()) channel.write(chunk);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("The landmarks could not be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This method maps saved landmark tables into memory if they belong to the same map and number
+     * of landmarks.
+     *
+     * @param file        the file
+     * @param fingerprint fingerprint of the map (see lab1.fingerprint())
+     * @param count       number of landmarks
+     * @param size        number of pixels
+     * @return if the tables were read
+     */
+    boolean read(File file, long fingerprint, int count, int size) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize(count));
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < headerSize(count) || header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != fingerprint || header.getInt() != count || header.getInt() != size
+                    || channel.size() != headerSize(count) + 8L * count * size) return false;
+            pixels = new int[count];
+            for (int i = 0; i < count; i++) pixels[i] = header.getInt();
+            from = new float[count][size];
+            to = new float[count][size];
+            long position = headerSize(count);
+            for (int i = 0; i < count; i++) {
+                for (float[] table : new float[][]{from[i], to[i]}) {
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size).asFloatBuffer().get(table);
+                    position += 4L * size;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param count number of landmarks
+     * @return the position of the first table in a saved file
+     */
+    private static int headerSize(int count) {
+        return 4 * 2 + 8 + 4 * 2 + 4 * count;
+    }
+}
+
+/**
+ * an auxiliary class for hierarchical path-finding (HPA*). The map is split into square clusters.
+ * Entrances between adjacent clusters become abstract nodes, which are connected by the time costs
+ * of crossing the border and by the optimal time costs within each cluster. A query searches this
+ * small abstract graph first and then only refines the clusters along the chosen corridor. Routes
+ * are close to, but not always exactly, optimal.
+ */
+class Hierarchy {
+    /**
+     * magic number ("L1HP") and format version of saved abstractions
+     */
+    static final int MAGIC = 0x4C314850, VERSION = 1;
+
+    /**
+     * the terrain
+     */
+    final lab1 map;
+
+    /**
+     * width and height of a cluster in pixels and number of clusters per row and column
+     */
+    final int clusterSize, clustersX, clustersY;
+
+    /**
+     * pixel of every abstract node
+     */
+    int[] nodes;
+
+    /**
+     * outgoing edges of every abstract node: edges of node i are edgeStart[i] to edgeStart[i + 1] - 1
+     */
+    int[] edgeStart, edgeTarget;
+    float[] edgeCost;
+
+    /**
+     * abstract nodes of every cluster
+     */
+    int[][] clusterNodes;
+
+    /**
+     * The constructor prepares an empty abstraction (see build() and read()).
+     *
+     * @param map         the terrain
+     * @param clusterSize width and height of a cluster in pixels
+     */
+    Hierarchy(lab1 map, int clusterSize) {
+        this.map = map;
+        this.clusterSize = clusterSize;
+        clustersX = (map.x + clusterSize - 1) / clusterSize;
+        clustersY = (map.y + clusterSize - 1) / clusterSize;
+    }
+
+    /**
+     * This method reads the abstraction saved next to the map, or builds and saves it if there is
+     * none that matches the map and the cluster size.
+     *
+     * @param map         the terrain
+     * @param clusterSize width and height of a cluster in pixels
+     * @return the abstraction
+     */
+    static Hierarchy open(lab1 map, int clusterSize) {
+        Hierarchy hierarchy = new Hierarchy(map, clusterSize);
+        File file = new File(map.terrainFile + ".hpa");
+        long fingerprint = map.fingerprint();
+        long time = System.nanoTime();
+        if (file.isFile() && hierarchy.read(file, fingerprint)) {
+            if (map.report) System.out.printf("hierarchy: read %d abstract nodes in %.2f ms%n", hierarchy.nodes.length, (System.nanoTime() - time) / 1e6);
+            return hierarchy;
+        }
+        hierarchy.build();
+        if (map.report) System.out.printf("hierarchy: built %d abstract nodes in %.2f ms%n", hierarchy.nodes.length, (System.nanoTime() - time) / 1e6);
+        hierarchy.write(file, fingerprint);
+        return hierarchy;
+    }
+
+    /**
+     * @param node index of a pixel
+     * @return the cluster containing the pixel
+     */
+    int clusterOf(int node) {
+        return (node / map.x / clusterSize) * clustersX + (node % map.x) / clusterSize;
+    }
+
+    /**
+     * This method finds the entrances between all adjacent clusters and calculates the optimal time
+     * costs between the entrances of every cluster.
+     */
+    void build() {
+        Map<Integer, Integer> ids = new HashMap<>();
+        List<Integer> pixels = new ArrayList<>();
+        List<List<float[]>> edges = new ArrayList<>();
+
+        // entrances on the borders between horizontally and vertically adjacent clusters
+        for (int cy = 0; cy < clustersY; cy++) {
+            for (int cx = 0; cx < clustersX; cx++) {
+                int left = cx * clusterSize, top = cy * clusterSize;
+                int right = Math.min(left + clusterSize, map.x), bottom = Math.min(top + clusterSize, map.y);
+                if (right < map.x) {
+                    entrances(ids, pixels, edges, map.index(right - 1, top), map.x, bottom - top, lab1.EAST, lab1.WEST, 1);
+                }
+                if (bottom < map.y) {
+                    entrances(ids, pixels, edges, map.index(left, bottom - 1), 1, right - left, lab1.SOUTH, lab1.NORTH, map.x);
+                }
+            }
+        }
+
+        // abstract nodes by cluster
+        List<List<Integer>> byCluster = new ArrayList<>();
+        for (int c = 0; c < clustersX * clustersY; c++) byCluster.add(new ArrayList<>());
+        for (int i = 0; i < pixels.size(); i++) byCluster.get(clusterOf(pixels.get(i))).add(i);
+        clusterNodes = new int[byCluster.size()][];
+        for (int c = 0; c < clusterNodes.length; c++) {
+            clusterNodes[c] = byCluster.get(c).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        // optimal time costs between the entrances of every cluster
+        for (int c = 0; c < clusterNodes.length; c++) {
+            for (int from : clusterNodes[c]) {
+                double[] costs = clusterCosts(pixels.get(from), c, false);
+                for (int to : clusterNodes[c]) {
+                    double cost = costs[local(pixels.get(to), c)];
+                    if (to != from && cost < Double.POSITIVE_INFINITY) edges.get(from).add(new float[]{to, (float) cost});
+                }
+            }
+        }
+
+        nodes = pixels.stream().mapToInt(Integer::intValue).toArray();
+        edgeStart = new int[nodes.length + 1];
+        for (int i = 0; i < nodes.length; i++) edgeStart[i + 1] = edgeStart[i] + edges.get(i).size();
+        edgeTarget = new int[edgeStart[nodes.length]];
+        edgeCost = new float[edgeStart[nodes.length]];
+        for (int i = 0; i < nodes.length; i++) {
+            for (int j = 0; j < edges.get(i).size(); j++) {
+                edgeTarget[edgeStart[i] + j] = (int) edges.get(i).get(j)[0];
+                edgeCost[edgeStart[i] + j] = edges.get(i).get(j)[1];
+            }
+        }
+    }
+
+    /**
+     * This method scans one border between two clusters for entrances: runs of pixel pairs that can
+     * be crossed in at least one direction. A short run gets one transition in its middle, a longer
+     * one gets a transition at each end and every eighth of a cluster in between, which keeps the
+     * abstract routes from detouring through the corners of the clusters.
+     *
+     * @param ids      abstract node of every pixel that already has one
+     * @param pixels   pixel of every abstract node
+     * @param edges    outgoing edges (target, cost) of every abstract node
+     * @param first    first pixel of the border on the near side
+     * @param step     index difference between consecutive border pixels
+     * @param length   number of border pixels
+     * @param across   direction from the near side to the far side
+     * @param back     direction from the far side to the near side
+     * @param offset   index difference between a near pixel and its far neighbor
+     */
+    private void entrances(Map<Integer, Integer> ids, List<Integer> pixels, List<List<float[]>> edges,
+                           int first, int step, int length, int across, int back, int offset) {
+        int runStart = -1, spacing = Math.max(6, clusterSize / 8);
+        for (int i = 0; i <= length; i++) {
+            int near = first + i * step;
+            boolean open = i < length && (map.edgeCost(near, across) < 1000000.0 || map.edgeCost(near + offset, back) < 1000000.0);
+            if (open && runStart < 0) runStart = i;
+            if (!open && runStart >= 0) {
+                if (i - runStart < 6) {
+                    transition(ids, pixels, edges, first + (runStart + i - 1) / 2 * step, across, back, offset);
+                } else {
+                    for (int j = runStart; j < i - 1; j += spacing) transition(ids, pixels, edges, first + j * step, across, back, offset);
+                    transition(ids, pixels, edges, first + (i - 1) * step, across, back, offset);
+                }
+                runStart = -1;
+            }
+        }
+    }
+
+    /**
+     * This method adds the abstract nodes and edges of one transition between two adjacent pixels.
+     */
+    private void transition(Map<Integer, Integer> ids, List<Integer> pixels, List<List<float[]>> edges,
+                            int near, int across, int back, int offset) {
+        int a = node(ids, pixels, edges, near), b = node(ids, pixels, edges, near + offset);
+        edges.get(a).add(new float[]{b, (float) map.edgeCost(near, across)});
+        edges.get(b).add(new float[]{a, (float) map.edgeCost(near + offset, back)});
+    }
+
+    /**
+     * @return the abstract node of a pixel (added if it has none yet)
+     */
+    private int node(Map<Integer, Integer> ids, List<Integer> pixels, List<List<float[]>> edges, int pixel) {
+        Integer id = ids.get(pixel);
+        if (id != null) return id;
+        ids.put(pixel, pixels.size());
+        pixels.add(pixel);
+        edges.add(new ArrayList<>());
+        return pixels.size() - 1;
+    }
+
+    /**
+     * @param pixel   index of a pixel
+     * @param cluster the cluster containing it
+     * @return the position of the pixel within the cluster
+     */
+    private int local(int pixel, int cluster) {
+        int left = cluster % clustersX * clusterSize, top = cluster / clustersX * clusterSize;
+        return (pixel / map.x - top) * clusterSize + pixel % map.x - left;
+    }
+
+    /**
+     * This method runs Dijkstra's algorithm within one cluster.
+     *
+     * @param source  index of the pixel to start from
+     * @param cluster the cluster containing it
+     * @param reverse if the time costs are towards the source instead of from it
+     * @return time costs of all pixels of the cluster (by position within the cluster)
+     */
+    double[] clusterCosts(int source, int cluster, boolean reverse) {
+        int left = cluster % clustersX * clusterSize, top = cluster / clustersX * clusterSize;
+        int right = Math.min(left + clusterSize, map.x), bottom = Math.min(top + clusterSize, map.y);
+        double[] costs = new double[clusterSize * clusterSize];
+        boolean[] settled = new boolean[costs.length];
+        Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        NodeHeap queue = new NodeHeap(256);
+        costs[local(source, cluster)] = 0.0;
+        queue.add(source, 0.0);
+        while (queue.size() != 0) {
+            int current = queue.poll(), position = local(current, cluster);
+            if (settled[position]) continue;
+            settled[position] = true;
+            int xTemp = current % map.x, yTemp = current / map.x;
+            if (xTemp + 1 < right) relax(costs, queue, cluster, current, current + 1, reverse ? lab1.WEST : lab1.EAST, reverse);
+            if (xTemp - 1 >= left) relax(costs, queue, cluster, current, current - 1, reverse ? lab1.EAST : lab1.WEST, reverse);
+            if (yTemp + 1 < bottom) relax(costs, queue, cluster, current, current + map.x, reverse ? lab1.NORTH : lab1.SOUTH, reverse);
+            if (yTemp - 1 >= top) relax(costs, queue, cluster, current, current - map.x, reverse ? lab1.SOUTH : lab1.NORTH, reverse);
+        }
+        return costs;
+    }
+
+    private void relax(double[] costs, NodeHeap queue, int cluster, int current, int adjacent, int direction, boolean reverse) {
+        double cost = costs[local(current, cluster)] + map.edgeCost(reverse ? adjacent : current, direction);
+        if (cost < costs[local(adjacent, cluster)]) {
+            costs[local(adjacent, cluster)] = cost;
+            queue.add(adjacent, cost);
+        }
+    }
+
+    /**
+     * This method finds a route between two pixels: it connects both to the entrances of their
+     * clusters, searches the abstract graph, and refines every abstract edge within its cluster.
+     *
+     * @param start index of the starting pixel
+     * @param goal  index of the visiting pixel
+     * @param state the search state used for refining (its expanded count and queue counters become the totals)
+     * @return the route from the visiting pixel back to the starting pixel
+     */
+    int[] route(int start, int goal, SearchState state) {
+        int n = nodes.length, source = n, target = n + 1;
+        int startCluster = clusterOf(start), goalCluster = clusterOf(goal);
+        long expanded = 2;
+
+        // time costs from the starting pixel to its cluster's entrances and from the goal cluster's entrances to the visiting pixel
+        double[] fromStart = clusterCosts(start, startCluster, false), toGoal = clusterCosts(goal, goalCluster, true);
+        double[] toTarget = new double[n + 2];
+        Arrays.fill(toTarget, Double.POSITIVE_INFINITY);
+        for (int node : clusterNodes[goalCluster]) toTarget[node] = toGoal[local(nodes[node], goalCluster)];
+        if (startCluster == goalCluster) toTarget[source] = fromStart[local(goal, startCluster)];
+
+        // A* search over the abstract graph
+        double maxSpeed = map.maxSpeed();
+        double[] g = new double[n + 2];
+        int[] predecessors = new int[n + 2];
+        boolean[] closed = new boolean[n + 2];
+        Arrays.fill(g, Double.POSITIVE_INFINITY);
+        NodeHeap queue = new NodeHeap(256);
+        g[source] = 0.0;
+        queue.add(source, 0.0);
+        while (queue.size() != 0) {
+            int current = queue.poll();
+            if (closed[current]) continue;
+            closed[current] = true;
+            expanded++;
+            if (current == target) break;
+            if (toTarget[current] < Double.POSITIVE_INFINITY) {
+                improve(g, predecessors, queue, current, target, g[current] + toTarget[current], 0.0);
+            }
+            if (current == source) {
+                for (int node : clusterNodes[startCluster]) {
+                    double cost = fromStart[local(nodes[node], startCluster)];
+                    if (cost < Double.POSITIVE_INFINITY) improve(g, predecessors, queue, current, node, cost, estimate(nodes[node], goal, maxSpeed));
+                }
+            } else {
+                for (int e = edgeStart[current]; e < edgeStart[current + 1]; e++) {
+                    int next = edgeTarget[e];
+                    if (!closed[next]) improve(g, predecessors, queue, current, next, g[current] + edgeCost[e], estimate(nodes[next], goal, maxSpeed));
+                }
+            }
+        }
+
+        // the abstract graph does not connect them: fall back to a flat search
+        if (!closed[target]) {
+            map.search(start, goal, Heuristic.create("euclidean", map, start, goal), state);
+            return map.backtrack(start, goal, state);
+        }
+
+        // abstract route as pixels, from the starting pixel to the visiting pixel
+        List<Integer> corridor = new ArrayList<>();
+        for (int node = predecessors[target]; node != source; node = predecessors[node]) corridor.add(0, nodes[node]);
+        corridor.add(0, start);
+        corridor.add(goal);
+
+        // refine every abstract edge: a step across a border, or an A* search within one cluster
+        OpenList counters = new NodeHeap(1);
+        List<Integer> route = new ArrayList<>();
+        route.add(start);
+        for (int i = 0; i + 1 < corridor.size(); i++) {
+            int from = corridor.get(i), to = corridor.get(i + 1);
+            if (from == to) continue;
+            int cluster = clusterOf(from);
+            if (cluster != clusterOf(to)) {
+                route.add(to);
+                continue;
+            }
+            int left = cluster % clustersX * clusterSize, top = cluster / clustersX * clusterSize;
+            map.search(from, to, Heuristic.create("euclidean", map, from, to), state, left, top,
+                    Math.min(left + clusterSize, map.x), Math.min(top + clusterSize, map.y));
+            expanded += state.expanded;
+            counters.addCounters(state.queue);
+            int[] piece = map.backtrack(from, to, state);
+            for (int j = piece.length - 2; j >= 0; j--) route.add(piece[j]);
+        }
+        state.expanded = expanded;
+        state.queue.resetCounters();
+        state.queue.addCounters(counters);
+
+        int[] result = new int[route.size()];
+        for (int i = 0; i < result.length; i++) result[i] = route.get(result.length - 1 - i);
+        return result;
+    }
+
+    private static void improve(double[] g, int[] predecessors, NodeHeap queue, int current, int next, double cost, double h) {
+        if (cost < g[next]) {
+            g[next] = cost;
+            predecessors[next] = current;
+            queue.add(next, cost + h);
+        }
+    }
+
+    /**
+     * @return the straight-line time estimate between two pixels
+     */
+    private double estimate(int from, int to, double maxSpeed) {
+        double tx = Math.abs(from % map.x - to % map.x) * map.dx, ty = Math.abs(from / map.x - to / map.x) * map.dy;
+        return Math.sqrt(tx * tx + ty * ty) / maxSpeed;
+    }
+
+    /**
+     * This method saves the abstraction together with the fingerprint of the map it belongs to.
+     *
+     * @param file        the file
+     * @param fingerprint fingerprint of the map (see lab1.fingerprint())
+     */
+    void write(File file, long fingerprint) {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(fingerprint);
+            output.writeInt(clusterSize);
+            output.writeInt(nodes.length);
+            for (int node : nodes) output.writeInt(node);
+            for (int start : edgeStart) output.writeInt(start);
+            for (int i = 0; i < edgeTarget.length; i++) {
+                output.writeInt(edgeTarget[i]);
+                output.writeFloat(edgeCost[i]);
+            }
+        } catch (IOException e) {
+            System.out.println("The hierarchy could not be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * This method reads a saved abstraction if it belongs to the same map and cluster size.
+     *
+     * @param file        the file
+     * @param fingerprint fingerprint of the map (see lab1.fingerprint())
+     * @return if the abstraction was read
+     */
+    boolean read(File file, long fingerprint) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != fingerprint
+                    || input.readInt() != clusterSize) return false;
+            nodes = new int[input.readInt()];
+            for (int i = 0; i < nodes.length; i++) nodes[i] = input.readInt();
+            edgeStart = new int[nodes.length + 1];
+            for (int i = 0; i <= nodes.length; i++) edgeStart[i] = input.readInt();
+            edgeTarget = new int[edgeStart[nodes.length]];
+            edgeCost = new float[edgeStart[nodes.length]];
+            for (int i = 0; i < edgeTarget.length; i++) {
+                edgeTarget[i] = input.readInt();
+                edgeCost[i] = input.readFloat();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        List<List<Integer>> byCluster = new ArrayList<>();
+        for (int c = 0; c < clustersX * clustersY; c++) byCluster.add(new ArrayList<>());
+        for (int i = 0; i < nodes.length; i++) byCluster.get(clusterOf(nodes[i])).add(i);
+        clusterNodes = new int[byCluster.size()][];
+        for (int c = 0; c < clusterNodes.length; c++) {
+            clusterNodes[c] = byCluster.get(c).stream().mapToInt(Integer::intValue).toArray();
+        }
+        return true;
+    }
+}
+
+/**
+ * an auxiliary class for the anytime search of one leg (Anytime Repairing A*, ARA*). The first
+ * round is a weighted A* search with f(n) = g(n) + w * h(n), which quickly finds a route whose time
+ * cost is at most w times the optimal one. Every following round lowers w and continues from where
+ * the previous round stopped: pixels improved after they were expanded in the round (INCONS) are
+ * queued again, and all queued pixels get keys with the new weight. Rounds continue until the route
+ * is optimal or the deadline has passed; the route of the last finished round is kept.
+ */
+class AnytimeSearch {
+    /**
+     * the terrain
+     */
+    final lab1 map;
+
+    /**
+     * heuristic prepared for the visiting pixel (it must be admissible for the bound to hold)
+     */
+    final Heuristic heuristic;
+
+    /**
+     * g(n) and predecessor of every pixel
+     */
+    final double[] g;
+    final int[] predecessors;
+
+    /**
+     * the round in which every pixel was expanded last
+     */
+    final int[] closed;
+
+    /**
+     * queued pixels and pixels that were improved after their expansion in the current round
+     */
+    final boolean[] open, inconsistent;
+    final List<Integer> incons = new ArrayList<>();
+
+    /**
+     * the priority queue (entries whose key is outdated are skipped)
+     */
+    final NodeHeap queue = new NodeHeap(1024);
+
+    /**
+     * the route of the last finished round (from the visiting pixel back to the starting pixel)
+     */
+    int[] route;
+
+    /**
+     * the factor by which the time cost of the route may exceed the optimal one
+     */
+    double bound;
+
+    /**
+     * number of finished rounds and of expanded pixels
+     */
+    int rounds;
+    long expanded;
+
+    /**
+     * The constructor runs the search.
+     *
+     * @param map       the terrain
+     * @param start     index of the starting pixel
+     * @param goal      index of the visiting pixel
+     * @param heuristic heuristic prepared for the visiting pixel
+     * @param weight    the initial weight (at least 1)
+     * @param deadline  when no new round may start or continue (System.nanoTime()); the first round always finishes
+     */
+    AnytimeSearch(lab1 map, int start, int goal, Heuristic heuristic, double weight, long deadline) {
+        this.map = map;
+        this.heuristic = heuristic;
+        int size = map.x * map.y;
+        g = new double[size];
+        predecessors = new int[size];
+        closed = new int[size];
+        open = new boolean[size];
+        inconsistent = new boolean[size];
+        Arrays.fill(g, Double.POSITIVE_INFINITY);
+        g[start] = 0.0;
+        predecessors[start] = start;
+        queue.add(start, weight * heuristic.estimate(start));
+        open[start] = true;
+
+        double epsilon = weight;
+        while (improve(goal, epsilon, rounds == 0 ? Long.MAX_VALUE : deadline)) {
+            rounds++;
+            route = map.backtrack(start, goal, predecessors);
+
+            // no queued or inconsistent pixel can lead to a route faster than the lowest g(n) + h(n)
+            double lower = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < queue.size(); i++) {
+                int node = queue.nodes[i];
+                if (open[node]) lower = Math.min(lower, g[node] + heuristic.estimate(node));
+            }
+            for (int node : incons) lower = Math.min(lower, g[node] + heuristic.estimate(node));
+            bound = Math.max(1.0, Math.min(epsilon, g[goal] / lower));
+            if (bound <= 1.0 || epsilon <= 1.0 || System.nanoTime() >= deadline) break;
+
+            // the next round: a lower weight, and the inconsistent pixels queued again
+            epsilon = Math.max(1.0, Math.min(epsilon - 0.5, bound));
+            List<Integer> queued = new ArrayList<>(incons);
+            for (int i = 0; i < queue.size(); i++) {
+                int node = queue.nodes[i];
+                if (open[node]) {
+                    open[node] = false;
+                    queued.add(node);
+                }
+            }
+            queue.clear();
+            for (int node : incons) inconsistent[node] = false;
+            incons.clear();
+            for (int node : queued) {
+                if (open[node]) continue;
+                open[node] = true;
+                queue.add(node, g[node] + epsilon * heuristic.estimate(node));
+            }
+        }
+    }
+
+    /**
+     * This method expands pixels by g(n) + epsilon * h(n) until the visiting pixel is not worse than
+     * any queued pixel.
+     *
+     * @param goal     index of the visiting pixel
+     * @param epsilon  the heuristic weight of this round
+     * @param deadline when the round has to be given up (System.nanoTime())
+     * @return if the round finished before the deadline
+     */
+    private boolean improve(int goal, double epsilon, long deadline) {
+        int round = rounds + 1;
+        while (queue.size() != 0) {
+            int current = queue.peek();
+            if (!open[current] || queue.peekKey() != g[current] + epsilon * heuristic.estimate(current)) {
+                queue.poll();
+                continue;
+            }
+            if (g[goal] <= queue.peekKey()) break;
+            queue.poll();
+            open[current] = false;
+            closed[current] = round;
+            if ((++expanded & 1023) == 0 && System.nanoTime() >= deadline) return false;
+            int xTemp = current % map.x, yTemp = current / map.x;
+            if (xTemp + 1 < map.x) relax(current, current + 1, map.edgeCost(current, lab1.EAST), epsilon, round);
+            if (xTemp - 1 >= 0) relax(current, current - 1, map.edgeCost(current, lab1.WEST), epsilon, round);
+            if (yTemp + 1 < map.y) relax(current, current + map.x, map.edgeCost(current, lab1.SOUTH), epsilon, round);
+            if (yTemp - 1 >= 0) relax(current, current - map.x, map.edgeCost(current, lab1.NORTH), epsilon, round);
+        }
+        return true;
+    }
+
+    private void relax(int parent, int child, double cost, double epsilon, int round) {
+        double g1 = g[parent] + cost;
+        if (g1 >= g[child]) return;
+        g[child] = g1;
+        predecessors[child] = parent;
+        if (closed[child] != round) {
+            open[child] = true;
+            queue.add(child, g1 + epsilon * heuristic.estimate(child));
+        } else if (!inconsistent[child]) {
+            inconsistent[child] = true;
+            incons.add(child);
+        }
+    }
+}
+
+/**
+ * an auxiliary class for the time costs between all points to visit (a many-to-many matrix) and
+ * for ordering the points by it. Row i comes from one Dijkstra search from point i, which also
+ * gives the routes from point i to all other points; rows are searched in parallel with the
+ * threads of the map. Time costs are asymmetric (uphill and downhill differ), so every move is
+ * evaluated with the costs in the direction of travel.
+ * <p>
+ * An order is an array of point indices that starts with point 0 and ends with point 0 again
+ * (round trips) or with the extra index size, an end that every point reaches at no cost (routes
+ * that may end anywhere). Only the points in between move.
+ */
+class TravelMatrix {
+    /**
+     * number of points
+     */
+    final int size;
+
+    /**
+     * time cost from every point to every other point
+     */
+    final double[][] costs;
+
+    /**
+     * route from every point to every other point (from the other point back to the first one)
+     */
+    final int[][][] routes;
+
+    /**
+     * number of pixels expanded by all searches and number of improving moves
+     */
+    long expanded;
+    int moves;
+
+    /**
+     * The constructor searches the time costs and routes between all points.
+     *
+     * @param map    the terrain
+     * @param points the points (all distinct)
+     */
+    TravelMatrix(lab1 map, List<int[]> points) {
+        size = points.size();
+        costs = new double[size][size];
+        routes = new int[size][size][];
+        int[] pixels = new int[size];
+        for (int i = 0; i < size; i++) pixels[i] = map.index(points.get(i)[0], points.get(i)[1]);
+
+        List<Callable<Long>> rows = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int row = i;
+            rows.add(() -> {
+                SearchState state = map.threads > 1 ? map.threadSearch.get() : map.search;
+                map.searchAll(pixels[row], pixels, state);
+                for (int j = 0; j < size; j++) {
+                    costs[row][j] = state.g(pixels[j]);
+                    routes[row][j] = map.backtrack(pixels[row], pixels[j], state);
+                }
+                return state.expanded;
+            });
+        }
+        ForkJoinPool pool = map.threads > 1 ? new ForkJoinPool(map.threads) : null;
+        try {
+            if (pool != null) {
+                for (Future<Long> row : pool.invokeAll(rows)) expanded += row.get();
+            } else {
+                for (Callable<Long> row : rows) expanded += row.call();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    /**
+     * @param from a point (or the free end)
+     * @param to   a point (or the free end)
+     * @return the time cost between them (0 from or to the free end)
+     */
+    double cost(int from, int to) {
+        return from == size || to == size ? 0.0 : costs[from][to];
+    }
+
+    /**
+     * @param order an order of the points
+     * @return the total time cost of the order
+     */
+    double cost(int[] order) {
+        double total = 0.0;
+        for (int i = 0; i + 1 < order.length; i++) total += cost(order[i], order[i + 1]);
+        return total;
+    }
+
+    /**
+     * This method builds an order by always going to the nearest point not visited yet.
+     *
+     * @param roundTrip if the order returns to the starting point
+     * @return the order
+     */
+    int[] nearestNeighbour(boolean roundTrip) {
+        int[] order = new int[size + 1];
+        boolean[] visited = new boolean[size];
+        visited[0] = true;
+        for (int i = 1; i < size; i++) {
+            int last = order[i - 1], next = -1;
+            for (int j = 0; j < size; j++) {
+                if (!visited[j] && (next < 0 || costs[last][j] < costs[last][next])) next = j;
+            }
+            visited[next] = true;
+            order[i] = next;
+        }
+        order[size] = roundTrip ? 0 : size;
+        return order;
+    }
+
+    /**
+     * This method improves an order with 2-opt moves (reversing a part of it) and Or-opt moves
+     * (moving up to three consecutive points elsewhere) until neither finds an improvement.
+     *
+     * @param order an order of the points
+     * @return the improved order
+     */
+    int[] improve(int[] order) {
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            while (twoOpt(order)) improved = true;
+            int[] moved;
+            while ((moved = orOpt(order)) != null) {
+                order = moved;
+                improved = true;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * This method applies the best 2-opt move, which reverses order[i + 1..j]. Because time costs
+     * are asymmetric, the reversed part is evaluated with prefix sums of the costs in both directions.
+     *
+     * @param order an order of the points (changed in place)
+     * @return if a move improved the order
+     */
+    private boolean twoOpt(int[] order) {
+        int n = order.length;
+        double[] forward = new double[n], backward = new double[n];
+        for (int k = 1; k < n; k++) {
+            forward[k] = forward[k - 1] + cost(order[k - 1], order[k]);
+            backward[k] = backward[k - 1] + cost(order[k], order[k - 1]);
+        }
+        double best = -1e-9;
+        int bestI = -1, bestJ = -1;
+        for (int i = 0; i + 2 < n - 1; i++) {
+            for (int j = i + 2; j < n - 1; j++) {
+                double before = cost(order[i], order[i + 1]) + forward[j] - forward[i + 1] + cost(order[j], order[j + 1]);
+                double after = cost(order[i], order[j]) + backward[j] - backward[i + 1] + cost(order[i + 1], order[j + 1]);
+                if (after - before < best) {
+                    best = after - before;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+        }
+        if (bestI < 0) return false;
+        for (int a = bestI + 1, b = bestJ; a < b; a++, b--) {
+            int temp = order[a];
+            order[a] = order[b];
+            order[b] = temp;
+        }
+        moves++;
+        return true;
+    }
+
+    /**
+     * This method applies the best Or-opt move, which takes up to three consecutive points out of
+     * the order and puts them (in the same direction) between two other consecutive points.
+     *
+     * @param order an order of the points
+     * @return the new order (null if no move improves the order)
+     */
+    private int[] orOpt(int[] order) {
+        int n = order.length;
+        double best = -1e-9;
+        int bestStart = -1, bestLength = 0, bestAfter = -1;
+        for (int length = 1; length <= 3; length++) {
+            for (int s = 1; s + length < n; s++) {
+                int first = order[s], last = order[s + length - 1];
+                double removed = cost(order[s - 1], first) + cost(last, order[s + length]) - cost(order[s - 1], order[s + length]);
+                for (int p = 0; p + 1 < n; p++) {
+                    if (p >= s - 1 && p < s + length) continue;
+                    double added = cost(order[p], first) + cost(last, order[p + 1]) - cost(order[p], order[p + 1]);
+                    if (added - removed < best) {
+                        best = added - removed;
+                        bestStart = s;
+                        bestLength = length;
+                        bestAfter = p;
+                    }
+                }
+            }
+        }
+        if (bestStart < 0) return null;
+        int[] moved = new int[n];
+        int k = 0;
+        for (int p = 0; p < n; p++) {
+            if (p >= bestStart && p < bestStart + bestLength) continue;
+            moved[k++] = order[p];
+            if (p == bestAfter) {
+                for (int q = bestStart; q < bestStart + bestLength; q++) moved[k++] = order[q];
+            }
+        }
+        moves++;
+        return moved;
+    }
+}
+
+/**
+ * an auxiliary class for incremental replanning of one leg with Lifelong Planning A* (LPA*). Every
+ * pixel has g(n), the time cost from the starting pixel found so far, and rhs(n), the one-step
+ * lookahead min(g(p) + c(p, n)) over its adjacent pixels p. Pixels where both differ are queued by
+ * [min(g, rhs) + h; min(g, rhs)]. After time costs change, only the pixels whose rhs(n) changed
+ * are queued again, so repairing the route only expands the region the changes affect. The
+ * straight-line heuristic stays valid as long as no terrain becomes faster than the fastest one
+ * at the start; otherwise the leg is planned from scratch.
+ */
+class IncrementalPlanner {
+    /**
+     * the terrain
+     */
+    final lab1 map;
+
+    /**
+     * index of the starting and of the visiting pixel
+     */
+    final int start, goal;
+
+    /**
+     * g(n) and rhs(n) of every pixel
+     */
+    final double[] g, rhs;
+
+    /**
+     * inconsistent pixels by [k1; k2] (entries whose key is outdated are skipped)
+     */
+    final KeyHeap queue = new KeyHeap(1024);
+
+    /**
+     * the heuristic and the highest speed it was prepared for
+     */
+    DistanceHeuristic heuristic;
+    double maxSpeed;
+
+    /**
+     * number of pixels expanded so far
+     */
+    long expanded;
+
+    IncrementalPlanner(lab1 map, int start, int goal) {
+        this.map = map;
+        this.start = start;
+        this.goal = goal;
+        g = new double[map.x * map.y];
+        rhs = new double[map.x * map.y];
+        reset();
+    }
+
+    /**
+     * This method forgets everything and queues the starting pixel.
+     */
+    void reset() {
+        maxSpeed = map.maxSpeed();
+        heuristic = new DistanceHeuristic(map, goal, false);
+        Arrays.fill(g, Double.POSITIVE_INFINITY);
+        Arrays.fill(rhs, Double.POSITIVE_INFINITY);
+        queue.clear();
+        rhs[start] = 0.0;
+        queue.add(start, heuristic.estimate(start), 0.0);
+    }
+
+    /**
+     * This method updates the pixels whose rhs(n) might change because the time costs from or to
+     * the given pixels changed.
+     *
+     * @param changed indices of the pixels
+     */
+    void changed(List<Integer> changed) {
+        if (map.maxSpeed() > maxSpeed) {
+            reset();
+            return;
+        }
+        for (int node : changed) {
+            update(node);
+            int xTemp = node % map.x, yTemp = node / map.x;
+            if (xTemp + 1 < map.x) update(node + 1);
+            if (xTemp - 1 >= 0) update(node - 1);
+            if (yTemp + 1 < map.y) update(node + map.x);
+            if (yTemp - 1 >= 0) update(node - map.x);
+        }
+    }
+
+    /**
+     * This method recalculates rhs(n) of a pixel and queues it if it is inconsistent.
+     *
+     * @param node index of the pixel
+     */
+    private void update(int node) {
+        if (node != start) {
+            int xTemp = node % map.x, yTemp = node / map.x;
+            double best = Double.POSITIVE_INFINITY;
+
+            // the cost of moving from an adjacent pixel to this one
+            if (xTemp + 1 < map.x) best = Math.min(best, g[node + 1] + map.edgeCost(node + 1, lab1.WEST));
+            if (xTemp - 1 >= 0) best = Math.min(best, g[node - 1] + map.edgeCost(node - 1, lab1.EAST));
+            if (yTemp + 1 < map.y) best = Math.min(best, g[node + map.x] + map.edgeCost(node + map.x, lab1.NORTH));
+            if (yTemp - 1 >= 0) best = Math.min(best, g[node - map.x] + map.edgeCost(node - map.x, lab1.SOUTH));
+            rhs[node] = best;
+        }
+        if (g[node] != rhs[node]) {
+            double k2 = Math.min(g[node], rhs[node]);
+            queue.add(node, k2 + heuristic.estimate(node), k2);
+        }
+    }
+
+    /**
+     * This method expands inconsistent pixels until the visiting pixel is consistent and no queued
+     * pixel could still lead to a faster route.
+     */
+    void solve() {
+        while (true) {
+            // skip entries of pixels that became consistent or were queued again with another key
+            while (queue.size() != 0) {
+                int top = queue.peek();
+                double k2 = Math.min(g[top], rhs[top]);
+                if (g[top] != rhs[top] && queue.peekKey1() == k2 + heuristic.estimate(top) && queue.peekKey2() == k2) break;
+                queue.poll();
+            }
+            if (queue.size() == 0) return;
+            double goalK2 = Math.min(g[goal], rhs[goal]), goalK1 = goalK2 + heuristic.estimate(goal);
+            boolean before = queue.peekKey1() < goalK1 || queue.peekKey1() == goalK1 && queue.peekKey2() < goalK2;
+            if (!before && g[goal] == rhs[goal]) return;
+
+            int current = queue.poll();
+            expanded++;
+            if (g[current] > rhs[current]) g[current] = rhs[current];
+            else {
+                g[current] = Double.POSITIVE_INFINITY;
+                update(current);
+            }
+            int xTemp = current % map.x, yTemp = current / map.x;
+            if (xTemp + 1 < map.x) update(current + 1);
+            if (xTemp - 1 >= 0) update(current - 1);
+            if (yTemp + 1 < map.y) update(current + map.x);
+            if (yTemp - 1 >= 0) update(current - map.x);
+        }
+    }
+
+    /**
+     * @return the time cost of the optimal route
+     */
+    double time() {
+        return g[goal];
+    }
+
+    /**
+     * This method backtracks the optimal route by moving to the adjacent pixel that rhs(n) came from.
+     *
+     * @return the route from the visiting pixel back to the starting pixel
+     */
+    int[] route() {
+        List<Integer> route = new ArrayList<>();
+        int node = goal;
+        route.add(node);
+        while (node != start) {
+            int xTemp = node % map.x, yTemp = node / map.x, next = node;
+            double best = Double.POSITIVE_INFINITY;
+            if (xTemp + 1 < map.x && g[node + 1] + map.edgeCost(node + 1, lab1.WEST) < best) {
+                best = g[node + 1] + map.edgeCost(node + 1, lab1.WEST);
+                next = node + 1;
+            }
+            if (xTemp - 1 >= 0 && g[node - 1] + map.edgeCost(node - 1, lab1.EAST) < best) {
+                best = g[node - 1] + map.edgeCost(node - 1, lab1.EAST);
+                next = node - 1;
+            }
+            if (yTemp + 1 < map.y && g[node + map.x] + map.edgeCost(node + map.x, lab1.NORTH) < best) {
+                best = g[node + map.x] + map.edgeCost(node + map.x, lab1.NORTH);
+                next = node + map.x;
+            }
+            if (yTemp - 1 >= 0 && g[node - map.x] + map.edgeCost(node - map.x, lab1.SOUTH) < best) {
+                next = node - map.x;
+            }
+            if (next == node) break;
+            node = next;
+            route.add(node);
+        }
+        int[] result = new int[route.size()];
+        for (int i = 0; i < result.length; i++) result[i] = route.get(i);
+        return result;
+    }
+}
+
+/**
+ * an auxiliary class for a binary heap of pixels ordered by a pair of keys (lexicographically)
+ */
+class KeyHeap {
+    /**
+     * queued pixels and their keys
+     */
+    int[] nodes;
+    double[] keys1, keys2;
+
+    /**
+     * number of queued entries
+     */
+    int size;
+
+    KeyHeap(int capacity) {
+        nodes = new int[capacity];
+        keys1 = new double[capacity];
+        keys2 = new double[capacity];
+    }
+
+    private boolean less(double a1, double a2, double b1, double b2) {
+        return a1 < b1 || a1 == b1 && a2 < b2;
+    }
+
+    void add(int node, double key1, double key2) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            keys1 = Arrays.copyOf(keys1, size * 2);
+            keys2 = Arrays.copyOf(keys2, size * 2);
+        }
+        int k = size++, parent;
+        while (k > 0) {
+            parent = (k - 1) >>> 1;
+            if (!less(key1, key2, keys1[parent], keys2[parent])) break;
+            nodes[k] = nodes[parent];
+            keys1[k] = keys1[parent];
+            keys2[k] = keys2[parent];
+            k = parent;
+        }
+        nodes[k] = node;
+        keys1[k] = key1;
+        keys2[k] = key2;
+    }
+
+    int poll() {
+        int result = nodes[0], n = --size;
+        if (n > 0) {
+            int node = nodes[n], k = 0, child;
+            double key1 = keys1[n], key2 = keys2[n];
+            while ((child = 2 * k + 1) < n) {
+                if (child + 1 < n && less(keys1[child + 1], keys2[child + 1], keys1[child], keys2[child])) child++;
+                if (!less(keys1[child], keys2[child], key1, key2)) break;
+                nodes[k] = nodes[child];
+                keys1[k] = keys1[child];
+                keys2[k] = keys2[child];
+                k = child;
+            }
+            nodes[k] = node;
+            keys1[k] = key1;
+            keys2[k] = key2;
+        }
+        return result;
+    }
+
+    int peek() {
+        return nodes[0];
+    }
+
+    double peekKey1() {
+        return keys1[0];
+    }
+
+    double peekKey2() {
+        return keys2[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
+
+/**
+ * an auxiliary class to store the state of an A* search in primitive arrays indexed by pixel
+ * (y * width + x). Instead of clearing maps and sets after every search, each search gets a
+ * new generation number, and a pixel only counts as discovered or visited if it is stamped
+ * with the current generation.
+ */
+class SearchState {
+    /**
+     * pixels' g(n)
+     */
+    double[] g;
+
+    /**
+     * pixels' predecessors (for backtracking the optimal path)
+     */
+    int[] predecessors;
+
+    /**
+     * generation in which a pixel was first added to the priority queue
+     */
+    int[] discovered;
+
+    /**
+     * generation in which a pixel was visited
+     */
+    int[] visited;
+
+    /**
+     * generation of the current search
+     */
+    int generation;
+
+    /**
+     * a priority queue of pixels sorted by f(n)
+     */
+    OpenList queue;
+
+    /**
+     * number of pixels expanded by the current search
+     */
+    long expanded;
+
+    /**
+     * time spent preparing the heuristic of the current search in nanoseconds (if the search prepares it)
+     */
+    long heuristicTime;
+
+    /**
+     * The constructor allocates the state for a grid with the given number of pixels.
+     *
+     * @param size number of pixels
+     */
+    SearchState(int size) {
+        g = new double[size];
+        predecessors = new int[size];
+        discovered = new int[size];
+        visited = new int[size];
+        queue = new NodeHeap(1024);
+    }
+
+    /**
+     * This method prepares the state for a new search.
+     */
+    void reset() {
+        queue.clear();
+        queue.resetCounters();
+        expanded = 0;
+        heuristicTime = 0;
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(discovered, 0);
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * @param node the pixel
+     * @return g(n) of the pixel
+     */
+    double g(int node) {
+        return g[node];
+    }
+
+    /**
+     * @param node  the pixel
+     * @param value new g(n) of the pixel
+     */
+    void setG(int node, double value) {
+        g[node] = value;
+    }
+
+    /**
+     * @param node the pixel
+     * @return the predecessor of the pixel
+     */
+    int predecessor(int node) {
+        return predecessors[node];
+    }
+
+    /**
+     * @param node the pixel
+     * @return if the pixel has been added to the priority queue during the current search
+     */
+    boolean isDiscovered(int node) {
+        return discovered[node] == generation;
+    }
+
+    /**
+     * @param node the pixel
+     * @return if the pixel has been visited during the current search
+     */
+    boolean isVisited(int node) {
+        return visited[node] == generation;
+    }
+
+    /**
+     * This method records a pixel's predecessor and marks it as discovered.
+     *
+     * @param node        the pixel
+     * @param predecessor its predecessor
+     */
+    void discover(int node, int predecessor) {
+        predecessors[node] = predecessor;
+        discovered[node] = generation;
+    }
+
+    /**
+     * This method marks a pixel as visited.
+     *
+     * @param node the pixel
+     * @return false if the pixel had already been visited
+     */
+    boolean visit(int node) {
+        if (visited[node] == generation) return false;
+        visited[node] = generation;
+        return true;
+    }
+}
+
+/**
+ * an auxiliary class to store the state of an A* search over a tiled map. The state is split into
+ * pages of one tile each, which are only allocated once the search reaches the tile, so memory
+ * grows with the searched area instead of with the map.
+ */
+class PagedSearchState extends SearchState {
+    /**
+     * width of the map, tiles per row, and log2 of the tile size
+     */
+    final int width, tilesX, shift;
+
+    /**
+     * allocated pages (null if the search never reached the tile)
+     */
+    Page[] pages;
+
+    /**
+     * number of allocated pages and the most that may stay allocated between searches
+     */
+    int allocated, maxPages;
+
+    /**
+     * the state of the pixels of one tile
+     */
+    static class Page {
+        final double[] g;
+        final int[] predecessors, discovered, visited;
+
+        Page(int size) {
+            g = new double[size];
+            predecessors = new int[size];
+            discovered = new int[size];
+            visited = new int[size];
+        }
+    }
+
+    /**
+     * The constructor prepares an empty page table.
+     *
+     * @param width    width of the map
+     * @param height   height of the map
+     * @param tileSize width and height of a page in pixels (a power of two)
+     * @param budget   memory (bytes) the pages may keep between searches
+     */
+    PagedSearchState(int width, int height, int tileSize, long budget) {
+        super(0);
+        this.width = width;
+        shift = Integer.numberOfTrailingZeros(tileSize);
+        tilesX = (width + tileSize - 1) >> shift;
+        pages = new Page[tilesX * ((height + tileSize - 1) >> shift)];
+        maxPages = (int) Math.max(1, budget / (20L << (2 * shift)));
+    }
+
+    @Override
+    void reset() {
+        queue.clear();
+        queue.resetCounters();
+        expanded = 0;
+        heuristicTime = 0;
+        // forget all pages if the last search left too many of them
+        if (allocated > maxPages || ++generation == Integer.MAX_VALUE) {
+            Arrays.fill(pages, null);
+            allocated = 0;
+            generation = 1;
+        }
+    }
+
+    /**
+     * @param node the pixel
+     * @return the page of the pixel (allocated if needed)
+     */
+    private Page page(int node) {
+        int xPixel = node % width, yPixel = node / width;
+        int index = (yPixel >> shift) * tilesX + (xPixel >> shift);
+        Page page = pages[index];
+        if (page == null) {
+            page = pages[index] = new Page(1 << (2 * shift));
+            allocated++;
+        }
+        return page;
+    }
+
+    /**
+     * @param node the pixel
+     * @return the position of the pixel within its page
+     */
+    private int offset(int node) {
+        int mask = (1 << shift) - 1;
+        return (((node / width) & mask) << shift) | ((node % width) & mask);
+    }
+
+    @Override
+    double g(int node) {
+        return page(node).g[offset(node)];
+    }
+
+    @Override
+    void setG(int node, double value) {
+        page(node).g[offset(node)] = value;
+    }
+
+    @Override
+    int predecessor(int node) {
+        return page(node).predecessors[offset(node)];
+    }
+
+    @Override
+    boolean isDiscovered(int node) {
+        return page(node).discovered[offset(node)] == generation;
+    }
+
+    @Override
+    boolean isVisited(int node) {
+        return page(node).visited[offset(node)] == generation;
+    }
+
+    @Override
+    void discover(int node, int predecessor) {
+        Page page = page(node);
+        int offset = offset(node);
+        page.predecessors[offset] = predecessor;
+        page.discovered[offset] = generation;
+    }
+
+    @Override
+    boolean visit(int node) {
+        Page page = page(node);
+        int offset = offset(node);
+        if (page.visited[offset] == generation) return false;
+        page.visited[offset] = generation;
+        return true;
+    }
+}
+
+/**
+ * an auxiliary class giving access to a compiled map in square tiles. Tiles are read from the
+ * file when needed and kept in a least-recently-used cache within a memory budget, so only the
+ * tiles around the searched area are in memory and maps can be larger than the heap. Time costs
+ * are calculated on demand exactly like lab1.prepareCosts() does.
+ */
+class TiledGrid {
+    /**
+     * the compiled map
+     */
+    final FileChannel channel;
+
+    /**
+     * width and height of the map, log2 of the tile size, tiles per row, and the most tiles in the cache
+     */
+    final int width, height, shift, tilesX, maxTiles;
+
+    /**
+     * positions of the terrain classes and of the elevations in the file
+     */
+    final long terrainOffset, elevationOffset;
+
+    /**
+     * memory budget of the cache in bytes
+     */
+    final long budget;
+
+    /**
+     * terrain classes of the file mapped to the current terrain classes
+     */
+    final byte[] remap;
+
+    /**
+     * terrain speeds, pixel size, and slope thresholds (see lab1.stepCost())
+     */
+    final double[] classSpeed;
+    final double dx, dy, xGentle, xSteep, yGentle, ySteep;
+
+    /**
+     * cached tiles in access order
+     */
+    final LinkedHashMap<Integer, Tile> cache;
+
+    /**
+     * the most recently used tile (a shortcut past the synchronized cache)
+     */
+    volatile Tile last;
+
+    /**
+     * number of tiles read from the file
+     */
+    long loads;
+
+    /**
+     * terrain classes and elevations of one tile
+     */
+    static class Tile {
+        final int index;
+        final byte[] terrain;
+        final float[] elevation;
+
+        Tile(int index, int size) {
+            this.index = index;
+            terrain = new byte[size];
+            elevation = new float[size];
+        }
+    }
+
+    /**
+     * The constructor opens a compiled map for tiled access.
+     *
+     * @param map             the terrain (for its size, pixel size, and terrain speeds)
+     * @param channel         the compiled map
+     * @param terrainOffset   position of the terrain classes in the file
+     * @param elevationOffset position of the elevations in the file
+     * @param remap           terrain classes of the file mapped to the current terrain classes
+     * @param tileSize        width and height of a tile in pixels (a power of two)
+     * @param budget          memory budget of the cache in bytes
+     */
+    TiledGrid(lab1 map, FileChannel channel, long terrainOffset, long elevationOffset, byte[] remap, int tileSize, long budget) {
+        this.channel = channel;
+        this.terrainOffset = terrainOffset;
+        this.elevationOffset = elevationOffset;
+        this.remap = remap;
+        this.budget = budget;
+        width = map.x;
+        height = map.y;
+        shift = Integer.numberOfTrailingZeros(tileSize);
+        tilesX = (width + tileSize - 1) >> shift;
+        maxTiles = (int) Math.max(4, budget / (5L << (2 * shift)));
+        classSpeed = map.classSpeed;
+        dx = map.dx;
+        dy = map.dy;
+        xGentle = dx / Math.sqrt(3);
+        xSteep = dx / Math.sqrt(2);
+        yGentle = dy / Math.sqrt(3);
+        ySteep = dy / Math.sqrt(2);
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                return size() > maxTiles;
+            }
+        };
+        last = new Tile(-1, 0);
+    }
+
+    /**
+     * @param xPixel x-coordinate of a pixel
+     * @param yPixel y-coordinate of a pixel
+     * @return the tile containing the pixel (read from the file if it is not cached)
+     */
+    Tile tile(int xPixel, int yPixel) {
+        int index = (yPixel >> shift) * tilesX + (xPixel >> shift);
+        Tile tile = last;
+        if (tile.index == index) return tile;
+        synchronized (cache) {
+            tile = cache.get(index);
+            if (tile == null) {
+                tile = read(index);
+                cache.put(index, tile);
+            }
+        }
+        last = tile;
+        return tile;
+    }
+
+    /**
+     * This method reads one tile row by row.
+     *
+     * @param index index of the tile
+     * @return the tile
+     */
+    private Tile read(int index) {
+        int size = 1 << shift, left = (index % tilesX) << shift, top = (index / tilesX) << shift;
+        int columns = Math.min(size, width - left);
+        Tile tile = new Tile(index, size * size);
+        ByteBuffer elevations = ByteBuffer.allocate(4 * columns);
+        try {
+            for (int row = 0; row < size && top + row < height; row++) {
+                long pixel = (long) (top + row) * width + left;
+                readFully(ByteBuffer.wrap(tile.terrain, row << shift, columns), terrainOffset + pixel);
+                elevations.clear();
+                readFully(elevations, elevationOffset + 4 * pixel);
+                elevations.flip();
+                elevations.asFloatBuffer().get(tile.elevation, row << shift, columns);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < tile.terrain.length; i++) tile.terrain[i] = remap[tile.terrain[i]];
+        loads++;
+        return tile;
+    }
+
+    /**
+     * This method fills a buffer from a position of the file.
+     *
+     * @param buffer   the buffer
+     * @param position position in the file
+     * @throws IOException if the file ends early or cannot be read
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("compiled map ends early");
+            position += read;
+        }
+    }
+
+    /**
+     * @param node index of the pixel
+     * @return the terrain class of the pixel
+     */
+    int terrainAt(int node) {
+        int xPixel = node % width, yPixel = node / width, mask = (1 << shift) - 1;
+        return tile(xPixel, yPixel).terrain[((yPixel & mask) << shift) | (xPixel & mask)];
+    }
+
+    /**
+     * @param node index of the pixel
+     * @return the elevation of the pixel
+     */
+    float elevationAt(int node) {
+        int xPixel = node % width, yPixel = node / width, mask = (1 << shift) - 1;
+        return tile(xPixel, yPixel).elevation[((yPixel & mask) << shift) | (xPixel & mask)];
+    }
+
+    /**
+     * This method calculates the time cost from a pixel to one of its adjacent pixels.
+     *
+     * @param node      index of the pixel
+     * @param direction lab1.EAST, WEST, SOUTH, or NORTH
+     * @return the time cost (rounded to float like the cost tables of maps in memory)
+     */
+    float cost(int node, int direction) {
+        double speed = classSpeed[terrainAt(node)], from = elevationAt(node);
+        return switch (direction) {
+            case lab1.EAST -> (float) lab1.stepCost(speed, from, elevationAt(node + 1), dx, xGentle, xSteep);
+            case lab1.WEST -> (float) lab1.stepCost(speed, from, elevationAt(node - 1), dx, xGentle, xSteep);
+            case lab1.SOUTH -> (float) lab1.stepCost(speed, from, elevationAt(node + width), dy, yGentle, ySteep);
+            default -> (float) lab1.stepCost(speed, from, elevationAt(node - width), dy, yGentle, ySteep);
+        };
+    }
+}
+
+/**
+ * an auxiliary class for the open list of a search: a priority queue of pixels by f(n). Adding a
+ * pixel that is already queued either adds a second entry (the search skips the stale one when it
+ * leaves the queue) or, for open lists with decrease-key, lowers the key of the existing entry.
+ * Every open list counts pushes, pops, and decrease-keys.
+ */
+abstract class OpenList {
+    /**
+     * all available open lists
+     */
+    static final List<String> KINDS = List.of("binary", "quaternary", "bucket");
+
+    /**
+     * number of entries added, removed, and lowered since the last resetCounters()
+     */
+    long pushes, pops, decreases;
+
+    /**
+     * largest number of queued entries since the last resetCounters()
+     */
+    int peak;
+
+    /**
+     * This method adds a pixel with its f(n), or lowers its f(n) if it is queued with a higher one.
+     *
+     * @param node the pixel
+     * @param key  its f(n)
+     */
+    abstract void add(int node, double key);
+
+    /**
+     * This method removes the pixel with the smallest f(n).
+     *
+     * @return the pixel
+     */
+    abstract int poll();
+
+    /**
+     * @return the pixel with the smallest f(n) (without removing it)
+     */
+    abstract int peek();
+
+    /**
+     * @return the smallest f(n)
+     */
+    abstract double peekKey();
+
+    /**
+     * @return number of queued entries
+     */
+    abstract int size();
+
+    /**
+     * This method removes all entries.
+     */
+    abstract void clear();
+
+    void resetCounters() {
+        pushes = pops = decreases = 0;
+        peak = 0;
+    }
+
+    /**
+     * This method adds the counters of another open list to the counters of this one.
+     *
+     * @param other the other open list
+     */
+    void addCounters(OpenList other) {
+        pushes += other.pushes;
+        pops += other.pops;
+        decreases += other.decreases;
+        peak = Math.max(peak, other.peak);
+    }
+
+    /**
+     * @return the counters as text
+     */
+    String counters() {
+        return pushes + " pushes, " + pops + " pops, " + decreases + " decrease-keys";
+    }
+
+    /**
+     * This method creates an open list by its name.
+     *
+     * @param kind        one of KINDS
+     * @param pixels      number of pixels of the map
+     * @param bucketWidth range of f(n) of a bucket of the bucket queue
+     * @return the open list
+     */
+    static OpenList create(String kind, int pixels, double bucketWidth) {
+        return switch (kind) {
+            case "binary" -> new NodeHeap(1024);
+            case "quaternary" -> new IndexedHeap(pixels);
+            case "bucket" -> new BucketQueue(bucketWidth);
+            default -> throw new IllegalArgumentException("Unknown open list: " + kind);
+        };
+    }
+}
+
+/**
+ * an auxiliary binary min-heap of pixels sorted by f(n), stored in two parallel primitive arrays.
+ * It sifts entries exactly like java.util.PriorityQueue does, so pixels with equal f(n) still
+ * leave the queue in the same order. It has no decrease-key: a pixel may be queued several times.
+ */
+class NodeHeap extends OpenList {
+    /**
+     * queued pixels
+     */
+    int[] nodes;
+
+    /**
+     * f(n) of the queued pixels
+     */
+    double[] keys;
+
+    /**
+     * number of queued entries
+     */
+    int size;
+
+    /**
+     * The constructor allocates a heap with the given initial capacity.
+     *
+     * @param capacity initial capacity (grows when needed)
+     */
+    NodeHeap(int capacity) {
+        nodes = new int[capacity];
+        keys = new double[capacity];
+    }
+
+    /**
+     * This method adds a pixel with its f(n) to the heap.
+     *
+     * @param node the pixel
+     * @param key  its f(n)
+     */
+    @Override
+    void add(int node, double key) {
+        pushes++;
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int k = size++, parent;
+        if (size > peak) peak = size;
+        while (k > 0) {
+            parent = (k - 1) >>> 1;
+            if (key >= keys[parent]) break;
+            nodes[k] = nodes[parent];
+            keys[k] = keys[parent];
+            k = parent;
+        }
+        nodes[k] = node;
+        keys[k] = key;
+    }
+
+    /**
+     * This method removes the pixel with the smallest f(n) from the heap.
+     *
+     * @return the pixel
+     */
+    @Override
+    int poll() {
+        pops++;
+        int result = nodes[0];
+        int n = --size;
+        if (n > 0) {
+            int node = nodes[n], k = 0, half = n >>> 1, child, right;
+            double key = keys[n];
+            while (k < half) {
+                child = 2 * k + 1;
+                right = child + 1;
+                if (right < n && keys[child] > keys[right]) child = right;
+                if (key <= keys[child]) break;
+                nodes[k] = nodes[child];
+                keys[k] = keys[child];
+                k = child;
+            }
+            nodes[k] = node;
+            keys[k] = key;
+        }
+        return result;
+    }
+
+    @Override
+    int peek() {
+        return nodes[0];
+    }
+
+    @Override
+    double peekKey() {
+        return keys[0];
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    void clear() {
+        size = 0;
+    }
+}
+
+/**
+ * an auxiliary indexed 4-ary min-heap of pixels sorted by f(n). Every pixel is queued at most once:
+ * the position of every pixel in the heap is known, so a better f(n) lowers the key in place
+ * (decrease-key) instead of adding a duplicate. A node has four children, which makes the heap
+ * shallower and keeps the children of a node next to each other in memory.
+ */
+class IndexedHeap extends OpenList {
+    /**
+     * queued pixels and their f(n)
+     */
+    int[] nodes;
+    double[] keys;
+
+    /**
+     * position of every pixel in the heap (-1 if it is not queued)
+     */
+    final int[] positions;
+
+    /**
+     * number of queued pixels
+     */
+    int size;
+
+    /**
+     * @param pixels number of pixels of the map
+     */
+    IndexedHeap(int pixels) {
+        nodes = new int[1024];
+        keys = new double[1024];
+        positions = new int[pixels];
+        Arrays.fill(positions, -1);
+    }
+
+    @Override
+    void add(int node, double key) {
+        int k = positions[node];
+        if (k >= 0) {
+            if (key >= keys[k]) return;
+            decreases++;
+        } else {
+            pushes++;
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            k = size++;
+            if (size > peak) peak = size;
+        }
+
+        // sift up
+        int parent;
+        while (k > 0) {
+            parent = (k - 1) >>> 2;
+            if (key >= keys[parent]) break;
+            nodes[k] = nodes[parent];
+            keys[k] = keys[parent];
+            positions[nodes[k]] = k;
+            k = parent;
+        }
+        nodes[k] = node;
+        keys[k] = key;
+        positions[node] = k;
+    }
+
+    @Override
+    int poll() {
+        pops++;
+        int result = nodes[0];
+        positions[result] = -1;
+        int n = --size;
+        if (n > 0) {
+            int node = nodes[n], k = 0, child, last;
+            double key = keys[n];
+
+            // sift down to the smallest of up to four children
+            while ((child = 4 * k + 1) < n) {
+                last = Math.min(child + 4, n);
+                int best = child;
+                for (int c = child + 1; c < last; c++) {
+                    if (keys[c] < keys[best]) best = c;
+                }
+                if (key <= keys[best]) break;
+                nodes[k] = nodes[best];
+                keys[k] = keys[best];
+                positions[nodes[k]] = k;
+                k = best;
+            }
+            nodes[k] = node;
+            keys[k] = key;
+            positions[node] = k;
+        }
+        return result;
+    }
+
+    @Override
+    int peek() {
+        return nodes[0];
+    }
+
+    @Override
+    double peekKey() {
+        return keys[0];
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    void clear() {
+        for (int i = 0; i < size; i++) positions[nodes[i]] = -1;
+        size = 0;
+    }
+}
+
+/**
+ * an auxiliary bucket queue of pixels: f(n) is quantized into buckets of a fixed width, and a ring
+ * of buckets covers the range of f(n) just above the smallest one. Pixels beyond the ring wait in
+ * an overflow heap until the ring moves up to them. A pixel leaves the lowest non-empty bucket, and
+ * within a bucket the one with the smallest f(n), so the order is still exact; buckets only save
+ * the sifting of a heap. Like the binary heap, it has no decrease-key.
+ */
+class BucketQueue extends OpenList {
+    /**
+     * number of buckets in the ring
+     */
+    static final int BUCKETS = 4096;
+
+    /**
+     * range of f(n) of a bucket
+     */
+    final double width;
+
+    /**
+     * pixels and f(n) of every bucket, and number of entries of every bucket
+     */
+    final int[][] bucketNodes = new int[BUCKETS][];
+    final double[][] bucketKeys = new double[BUCKETS][];
+    final int[] bucketSizes = new int[BUCKETS];
+
+    /**
+     * pixels beyond the ring
+     */
+    final NodeHeap overflow = new NodeHeap(256);
+
+    /**
+     * number of the lowest bucket of the ring (f(n) / width), and number of entries in the ring
+     */
+    long base;
+    int inRing;
+
+    /**
+     * bucket and position of the smallest entry (-1 if it has to be searched again)
+     */
+    int minBucket = -1, minIndex;
+
+    /**
+     * @param width range of f(n) of a bucket
+     */
+    BucketQueue(double width) {
+        this.width = width;
+    }
+
+    @Override
+    void add(int node, double key) {
+        pushes++;
+        long bucket = (long) Math.floor(key / width);
+        if (inRing == 0 && overflow.size() == 0) base = bucket;
+        if (size() + 1 > peak) peak = size() + 1;
+        if (bucket >= base + BUCKETS) {
+            overflow.add(node, key);
+            return;
+        }
+        // f(n) below the ring (inconsistent heuristics) goes into the lowest bucket
+        put(Math.floorMod(Math.max(bucket, base), BUCKETS), node, key);
+    }
+
+    private void put(int bucket, int node, double key) {
+        if (bucketNodes[bucket] == null) {
+            bucketNodes[bucket] = new int[8];
+            bucketKeys[bucket] = new double[8];
+        } else if (bucketSizes[bucket] == bucketNodes[bucket].length) {
+            bucketNodes[bucket] = Arrays.copyOf(bucketNodes[bucket], bucketSizes[bucket] * 2);
+            bucketKeys[bucket] = Arrays.copyOf(bucketKeys[bucket], bucketSizes[bucket] * 2);
+        }
+        bucketNodes[bucket][bucketSizes[bucket]] = node;
+        bucketKeys[bucket][bucketSizes[bucket]++] = key;
+        inRing++;
+        if (minBucket == bucket && key < bucketKeys[bucket][minIndex]) minIndex = bucketSizes[bucket] - 1;
+    }
+
+    /**
+     * This method finds the smallest entry, moving the ring up past empty buckets.
+     */
+    private void locate() {
+        if (minBucket >= 0) return;
+        if (inRing == 0) base = (long) Math.floor(overflow.peekKey() / width);
+        while (true) {
+            // entries of the overflow heap that the ring now covers
+            while (overflow.size() != 0 && overflow.peekKey() < (base + BUCKETS) * width) {
+                double key = overflow.peekKey();
+                put(Math.floorMod(Math.max((long) Math.floor(key / width), base), BUCKETS), overflow.poll(), key);
+            }
+            int bucket = Math.floorMod(base, BUCKETS);
+            if (bucketSizes[bucket] > 0) {
+                minBucket = bucket;
+                minIndex = 0;
+                for (int i = 1; i < bucketSizes[bucket]; i++) {
+                    if (bucketKeys[bucket][i] < bucketKeys[bucket][minIndex]) minIndex = i;
+                }
+                return;
+            }
+            base++;
+        }
+    }
+
+    @Override
+    int poll() {
+        pops++;
+        locate();
+        int bucket = minBucket, last = --bucketSizes[bucket];
+        int result = bucketNodes[bucket][minIndex];
+        bucketNodes[bucket][minIndex] = bucketNodes[bucket][last];
+        bucketKeys[bucket][minIndex] = bucketKeys[bucket][last];
+        inRing--;
+        minBucket = -1;
+        return result;
+    }
+
+    @Override
+    int peek() {
+        locate();
+        return bucketNodes[minBucket][minIndex];
+    }
+
+    @Override
+    double peekKey() {
+        locate();
+        return bucketKeys[minBucket][minIndex];
+    }
+
+    @Override
+    int size() {
+        return inRing + overflow.size();
+    }
+
+    @Override
+    void clear() {
+        Arrays.fill(bucketSizes, 0);
+        overflow.clear();
+        inRing = 0;
+        minBucket = -1;
+    }
+}
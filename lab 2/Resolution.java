@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.IntPredicate;
 
 /**
  * This program first reads one or multiple files encoding knowledge
@@ -14,26 +15,44 @@ import java.util.*;
  * @author Michael Lee, ml3406@rit.edu
  */
 public class Resolution {
-    /** a set to store all predicates used in the KB */
-    public Set<String> predicates;
+    /** the interned symbols and terms of the KB (literals are encoded as atom << 1 | negated) */
+    public Terms terms;
 
-    /** a set to store all variables used in the KB */
-    public Set<String> variables;
+    /** a list to store all clauses and resolvent (canonical arrays of encoded literals) */
+    public List<int[]> clauses;
 
-    /** a set to store all constants used in the KB */
-    public Set<String> constants;
+    /** a hash index over the clauses list for detecting duplicates and variants */
+    public ClauseStore store;
 
-    /** a set to store all functions used in the KB */
-    public Set<String> functions;
+    /** a list to store the indices of the clauses already selected (every new clause is resolved only against them) */
+    public List<Integer> active;
 
-    /** a list to store all clauses and resolvent */
-    public List<List<String>> clauses;
+    /** a feature vector index over the clauses neither subsumed nor retired (built when resolving starts) */
+    public FeatureIndex features;
 
-    /** a list to temporarily store all new resolvent (resolved from existing clauses) */
-    public List<List<String>> clausesToAdd;
+    /** the indices of the clauses subsumed by another clause (they are never selected or paired again) */
+    public BitSet retired;
 
-    /** an auxiliary map to store variables to be unified (key: variable; value: constant/function) */
-    public Map<String, String> toUnify;
+    /** the number of new clauses rejected because an existing clause subsumes them */
+    public int forwardSubsumed;
+
+    /** the number of existing clauses retired because a new clause subsumes them */
+    public int backwardSubsumed;
+
+    /** an auxiliary array marking the literals of the subsumed clause already mapped to */
+    private boolean[] used;
+
+    /** a queue of the clauses waiting to be selected (key: weight << 32 | index in the clauses list) */
+    public PriorityQueue<Long> passive;
+
+    /** if the number of kept and discarded clauses is printed */
+    public boolean stats;
+
+    /** if only the clauses in the set of support (all-negative input clauses and their descendants) are selected */
+    public boolean setOfSupport;
+
+    /** an auxiliary buffer to assemble a resolvent before it is copied into its own array */
+    private int[] resolvent;
 
     /** if the provided KB is satisfiable */
     public boolean satisfiable;
@@ -42,20 +61,21 @@ public class Resolution {
      * The constructor initializes all fields.
      */
     public Resolution() {
-        predicates = new HashSet<>();
-        variables = new HashSet<>();
-        constants = new HashSet<>();
-        functions = new HashSet<>();
         clauses = new ArrayList<>();
-        clausesToAdd = new ArrayList<>();
-        toUnify = new HashMap<>();
+        active = new ArrayList<>();
+        passive = new PriorityQueue<>();
+        retired = new BitSet();
+        used = new boolean[16];
+        terms = new Terms();
+        store = new ClauseStore(terms, clauses);
+        resolvent = new int[16];
         satisfiable = true;
     }
 
     /**
      * This method deals with input tasks, including reading all predicates,
-     * variables, constants, functions, and all clauses in the KB, and storing
-     * them into corresponding data structures.
+     * variables, constants, functions, and all clauses in the KB, and interning
+     * them into the terms of the KB.
      *
      * @param filename the input filename
      */
@@ -69,22 +89,26 @@ public class Resolution {
             while ((line = input.readLine()) != null) {
                 splitLine = line.split("\\s+");
                 if (!clause && splitLine.length > 1) {
+                    List<String> names = Arrays.asList(splitLine).subList(1, splitLine.length);
+                    // intern the declared symbols with their kinds
                     switch (splitLine[0]) {
-                        case "Predicates:" -> predicates.addAll(Arrays.asList(splitLine).subList(1, splitLine.length));
-                        case "Variables:" -> variables.addAll(Arrays.asList(splitLine).subList(1, splitLine.length));
-                        case "Constants:" -> constants.addAll(Arrays.asList(splitLine).subList(1, splitLine.length));
-                        case "Functions:" -> functions.addAll(Arrays.asList(splitLine).subList(1, splitLine.length));
+                        case "Predicates:" -> terms.declare(names, Terms.PREDICATE);
+                        case "Variables:" -> terms.declare(names, Terms.VARIABLE);
+                        case "Constants:" -> terms.declare(names, Terms.CONSTANT);
+                        case "Functions:" -> terms.declare(names, Terms.FUNCTION);
                     }
                 }
                 if (clause) {
                     /* a clause is composed of one or several literals =>
-                       every clause is an arraylist of arraylists (literals) */
-                    clauses.add(new ArrayList<>());
+                       every literal is parsed once into an interned term */
+                    int size = 0;
+                    terms.clause();
                     for (String s : splitLine) {
-                        clauses.get(clauses.size() - 1).add(s);
+                        if (s.isEmpty()) continue;
+                        if (size == resolvent.length) resolvent = Arrays.copyOf(resolvent, size * 2);
+                        resolvent[size++] = terms.literal(s);
                     }
-                    // sort every clause's literals (for checking duplicated clauses)
-                    clauses.get(clauses.size() - 1).sort(new SortLiteral());
+                    if (size > 0) store.add(store.canonical(resolvent, size));
                 }
                 if (!clause && splitLine[0].equals("Clauses:")) clause = true;
 
@@ -96,225 +120,235 @@ public class Resolution {
     }
 
     /**
-     * This method performs the main algorithm of resolution by pairing every two clauses
-     * to see if they can be resolved and produce a new clause (resolvent). After pairing
-     * every clause, it then checks if every newly produced clause is a duplicate of the
-     * existing clause. If not, add it to the clauses lists and then keep on pairing the
-     * new clauses with the existing clauses to see if there will be undiscovered clauses.
+     * This method performs the main algorithm of resolution with a given-clause loop: the
+     * lightest (then oldest) clause waiting in the passive queue is selected, moved to the
+     * active list, and paired with every active clause (itself included). Every resolvent
+     * that is not a duplicate of an existing clause joins the passive queue. The loop stops
+     * as soon as the empty clause is produced or when no clause is waiting.
+     * With set of support, the input clauses having a positive literal (which are satisfiable
+     * together by making every atom true) start active and are never paired with each other.
+     * A clause subsumed by another one is dropped from both lists (see {@link #admit(int)}).
      */
     public void resolve() {
-        // to keep on pairing or not
-        boolean carryOn;
-
-        // an auxiliary variable to prevent wasting time on pairing clauses that are already been paired
-        int index = 0;
-        do {
-            clausesToAdd.clear();
-            carryOn = false;
-
-            // resolve every two clauses if possible (pairing)
-            for (int i = 0; i < clauses.size() - 1; i++) {
-                for (int j = index + 1; j < clauses.size(); j++) {
-                    pairClauses(i, j);
-                }
+        features = new FeatureIndex(terms, clauses);
+        for (int i = 0; i < clauses.size(); i++) {
+            if (!admit(i)) continue;
+            if (setOfSupport && !negative(clauses.get(i))) active.add(i);
+            else passive.add(key(i));
+        }
+
+        while (satisfiable && !passive.isEmpty()) {
+            int given = (int) (long) passive.poll();
+            if (retired.get(given)) continue;
+            active.add(given);
+            for (int i = 0; i < active.size() && satisfiable && !retired.get(given); i++) {
+                if (!retired.get(active.get(i))) pairClauses(clauses.get(given), clauses.get(active.get(i)));
             }
 
-            // remember where to start pairing
-            index = clauses.size() - 1;
-            if (!satisfiable) break;
+            // the clauses subsumed by new resolvents leave the active list
+            active.removeIf(retired::get);
+        }
+    }
+
+    /**
+     * This method applies forward subsumption to a stored clause: it is retired if an indexed clause
+     * subsumes it. Otherwise, backward subsumption retires every indexed clause it subsumes and the
+     * clause joins the index.
+     *
+     * @param index index of the clause
+     * @return if the clause is kept
+     */
+    public boolean admit(int index) {
+        int[] clause = clauses.get(index);
+        if (features.anyGeneralization(clause, c -> subsumes(clauses.get(c), clause))) {
+            retired.set(index);
+            forwardSubsumed++;
+            return false;
+        }
+        for (int c : features.instances(clause, c -> subsumes(clause, clauses.get(c)))) {
+            features.remove(c, clauses.get(c));
+            retired.set(c);
+            backwardSubsumed++;
+        }
+        features.add(index, clause);
+        return true;
+    }
 
-            // if there are newly produced clauses
-            if (clausesToAdd.size() > 0) {
-                // check duplicates and keep on pairing if there are new clauses
-                if (checkDuplicateAndAdd()) carryOn = true;
+    /**
+     * This method checks if a clause subsumes another one, i.e. a substitution maps its
+     * literals to distinct literals of the other clause.
+     *
+     * @param c1 the clause that may be more general
+     * @param c2 the clause that may be subsumed
+     * @return if c1 subsumes c2
+     */
+    public boolean subsumes(int[] c1, int[] c2) {
+        if (c1.length > c2.length) return false;
+        if (used.length < c2.length) used = new boolean[2 * c2.length];
+        Arrays.fill(used, 0, c2.length, false);
+        boolean result = subsumes(c1, c2, 0);
+        terms.undo();
+        return result;
+    }
+
+    /**
+     * This method maps the literals of a clause from a position on to unused literals
+     * of the other clause by backtracking.
+     *
+     * @param c1    the clause that may be more general
+     * @param c2    the clause that may be subsumed
+     * @param index the position of the next literal to map
+     * @return if every remaining literal is mapped
+     */
+    private boolean subsumes(int[] c1, int[] c2, int index) {
+        if (index == c1.length) return true;
+        for (int j = 0; j < c2.length; j++) {
+            if (used[j] || ((c1[index] ^ c2[j]) & 1) != 0) continue;
+            int mark = terms.mark();
+            if (terms.match(c1[index] >>> 1, c2[j] >>> 1)) {
+                used[j] = true;
+                if (subsumes(c1, c2, index + 1)) return true;
+                used[j] = false;
             }
-        } while (carryOn);
+            terms.undo(mark);
+        }
+        return false;
     }
 
+    /**
+     * This method checks if a clause only has negative literals.
+     *
+     * @param clause the clause
+     * @return if every literal of the clause has a negation sign
+     */
+    public static boolean negative(int[] clause) {
+        for (int literal : clause) {
+            if ((literal & 1) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method returns the key of a clause in the passive queue.
+     * The weight of a clause is the number of symbols in it, and ties go to the oldest clause.
+     *
+     * @param index index of the clause
+     * @return its weight << 32 | its index
+     */
+    public long key(int index) {
+        long weight = 0;
+        for (int literal : clauses.get(index)) weight += terms.weight(literal >>> 1);
+        return weight << 32 | index;
+    }
 
     /**
      * This method compares two clauses and calls its helper function
      * to check if two literals form different clauses are resolvable.
      * If two clauses are resolvable, add the newly produced clause to
-     * an auxiliary list.
+     * the passive queue unless it is a duplicate.
      *
-     * @param index1 index of one clause
-     * @param index2 index of the other clause
+     * @param c1 one clause
+     * @param c2 the other clause
      */
-    public void pairClauses(int index1, int index2) {
-        // if two clauses both have only one literal, check if they can be resolved into an empty clause
-        if (clauses.get(index1).size() == 1 && clauses.get(index2).size() == 1) {
-            if (resolvable(clauses.get(index1).get(0), clauses.get(index2).get(0))) {
-                satisfiable = false;
-            }
-        } else {
-            // check every pair of literals from different clauses
-            for (int i = 0; i < clauses.get(index1).size(); i++) {
-                for (int j = 0; j < clauses.get(index2).size(); j++) {
-                    toUnify.clear();
-                    if (resolvable(clauses.get(index1).get(i), clauses.get(index2).get(j))) {
-                        List<String> temp = new ArrayList<>();
-                        for (int k = 0; k < clauses.get(index1).size(); k++) {
-                            if (k != i) {
-                                String sTemp = clauses.get(index1).get(k);
-                                // swapping variables with corresponding constants/functions
-                                for (String s : toUnify.keySet()) {
-                                    sTemp = sTemp.replace(s, toUnify.get(s));
-                                }
-                                temp.add(sTemp);
-                            }
-                        }
-                        for (int l = 0; l < clauses.get(index2).size(); l++) {
-
-                            if (l != j) {
-                                String sTemp = clauses.get(index2).get(l);
-                                for (String s : toUnify.keySet()) {
-                                    sTemp = sTemp.replace(s, toUnify.get(s));
-                                }
-                                temp.add(sTemp);
-                            }
-                        }
-                        temp.sort(new SortLiteral());
-                        clausesToAdd.add(temp);
+    public void pairClauses(int[] c1, int[] c2) {
+        if (resolvent.length < c1.length + c2.length) {
+            resolvent = new int[2 * (c1.length + c2.length)];
+        }
+
+        // check every pair of literals from different clauses
+        for (int i = 0; i < c1.length; i++) {
+            for (int j = 0; j < c2.length; j++) {
+                if (resolvable(c1[i], c2[j])) {
+                    // swapping variables with corresponding constants/functions
+                    int size = 0;
+                    for (int k = 0; k < c1.length; k++) {
+                        if (k != i) resolvent[size++] = terms.substitute(c1[k], 0);
                     }
-                }
+                    for (int l = 0; l < c2.length; l++) {
+                        if (l != j) resolvent[size++] = terms.substitute(c2[l], 1);
+                    }
+                    terms.undo();
+
+                    // two clauses both having only one literal are resolved into an empty clause
+                    if (size == 0) {
+                        satisfiable = false;
+                        return;
+                    }
+                    checkDuplicateAndAdd(store.canonical(resolvent, size));
+                } else terms.undo();
             }
         }
     }
 
     /**
      * This method checks if two literals are resolvable and also records the variables to be unified.
+     * The literals come from different clauses, so their variables are renamed apart (context 0 for
+     * the first and 1 for the second). The bindings stay in place until {@link Terms#undo()} is called.
      *
-     * @param s1 one literal from a clause
-     * @param s2 the other literal from the other clause
+     * @param literal1 one literal from a clause
+     * @param literal2 the other literal from the other clause
      * @return if two literals are resolvable
      */
-    public boolean resolvable(String s1, String s2) {
+    public boolean resolvable(int literal1, int literal2) {
         // if two literals are resolvable, there must be one with negation sign and one without
-        if ((s1.charAt(0) == '!' && s2.charAt(0) == '!') || (s1.charAt(0) != '!' && s2.charAt(0) != '!')) return false;
-
-        // remove the negation sign for pairing their contents
-        if (s1.charAt(0) == '!') s1 = s1.substring(1);
-        else s2 = s2.substring(1);
-
-        // remove parentheses and commas
-        String[] a1 = s1.split("[(),]");
-        String[] a2 = s2.split("[(),]");
-
-        // indices of two literal string arrays (similar two sequence alignment)
-        int index1 = 0, index2 = 0;
-        do {
-            if (a1[index1].equals(a2[index2])) {
-                index1++;
-                index2++;
-            } else {
-                // if there is an unmatched content, one or two must be a variable, or the literals are not resolvable
-                if (!variables.contains(a1[index1]) && !variables.contains(a2[index2])) return false;
-
-                // variables in both literals at current position (can be swapped to either one)
-                if (variables.contains(a1[index1]) && variables.contains(a2[index2])) {
-                    toUnify.put(a1[index1], a2[index2]);
-                    index1++;
-                    index2++;
-                }
-                // only one literal has a variable at current position
-                else if (variables.contains(a1[index1])) {
-                    // the other literal has a function
-                    if (functions.contains(a2[index2])) {
-                        toUnify.put(a1[index1], a2[index2] + "(" + a2[index2 + 1] + ")");
-                        index1++;
-
-                        /* This is the tricky part of dealing with functions: we have to deal with a function
-                           according to the position of it.  e.g. loves(SKF0(x1),x2) VS person(SKF0(x1))
-                           function in the middle VS function at the very end of a clause
-                           If the function is in the middle, we have to deal with a null String.
-                         */
-                        index2 += 2;
-                        // skip the null String
-                        if (index2 < a2.length && a2[index2].equals("")) index2++;
-                    }
-                    // the other literal has a constant
-                    else if (constants.contains(a2[index2])) {
-                        toUnify.put(a1[index1], a2[index2]);
-                        index1++;
-                        index2++;
-                    } else return false;
-                } else {
-                    if (functions.contains(a1[index1])) {
-                        toUnify.put(a2[index2], a1[index1] + "(" + a1[index1 + 1] + ")");
-                        index1 += 2;
-                        if (index1 < a1.length && a1[index1].equals("")) index1++;
-                        index2++;
-                    } else if (constants.contains(a1[index1])) {
-                        toUnify.put(a2[index2], a1[index1]);
-                        index1++;
-                        index2++;
-                    } else return false;
-                }
-            }
-        } while (index1 != a1.length && index2 != a2.length);
+        if (((literal1 ^ literal2) & 1) == 0) return false;
 
-        // if there is no unmatched content after two literals are fully aligned
-        return index1 == a1.length && index2 == a2.length;
+        // pair their contents (the atoms) without the negation sign
+        return terms.unify(literal1 >>> 1, 0, literal2 >>> 1, 1);
     }
 
     /**
-     * This method checks if every newly produced clause is a duplicate
-     * of an existing one. If not, add it to the clauses.
+     * This method checks if a newly produced clause is a duplicate or a variant of
+     * an existing one, or is subsumed by one. If not, add it to the passive queue.
      *
-     * @return if there is at least one new clause that is not a duplicate of an existing one
+     * @param clause the new clause in canonical form
+     * @return if the clause is kept
      */
-    public boolean checkDuplicateAndAdd() {
-        boolean result = false;
-        for (List<String> s1 : clausesToAdd) {
-            // assume not a duplicate first
-            boolean identical1 = false;
-
-            // align with every existing clause
-            for (List<String> s2 : clauses) {
-                if (s1.size() == s2.size()) {
-                    boolean identical2 = true;
-                    // check every literal
-                    for (int i = 0; i < s1.size(); i++) {
-                        if (!s1.get(i).equals(s2.get(i))) {
-                            identical2 = false;
-                            break;
-                        }
-                    }
-                    if (identical2) {
-                        identical1 = true;
-                        break;
-                    }
-                }
-            }
-            if (!identical1) {
-                clauses.add(s1);
-                result = true;
-            }
-        }
-        return result;
+    public boolean checkDuplicateAndAdd(int[] clause) {
+        // a subsumed clause stays in the store, so its variants are rejected right away later
+        if (!store.add(clause) || !admit(clauses.size() - 1)) return false;
+        passive.add(key(clauses.size() - 1));
+        return true;
     }
 
     /**
-     * This method prints either yes or no to indicate if the provided KB is satisfiable.
+     * This method prints either yes or no to indicate if the provided KB is satisfiable,
+     * followed by the number of kept and discarded clauses if asked.
      */
     public void output() {
         System.out.println(satisfiable ? "yes" : "no");
+        if (stats) {
+            System.out.println("kept " + (clauses.size() - retired.cardinality()) + " clauses, discarded "
+                    + store.discarded + " duplicates or variants, " + forwardSubsumed + " forward subsumed, "
+                    + backwardSubsumed + " backward subsumed");
+        }
     }
 
     /**
      * Main method.
      *
-     * @param args command line arguments -- input filename (one or multiple)
+     * @param args command line arguments -- input filename (one or multiple), --sos to select
+     *             only the clauses in the set of support, and --stats to print clause counts
      */
     public static void main(String[] args) {
-        if (args.length == 0) {
-            System.out.println("Usage: Resolution.java input-filename(one test case an argument)");
+        List<String> filenames = new ArrayList<>();
+        boolean setOfSupport = false, stats = false;
+        for (String s : args) {
+            switch (s) {
+                case "--sos" -> setOfSupport = true;
+                case "--stats" -> stats = true;
+                default -> filenames.add(s);
+            }
+        }
+        if (filenames.isEmpty()) {
+            System.out.println("Usage: Resolution.java [--sos] [--stats] input-filename(one test case an argument)");
             System.exit(0);
         }
 
-        for (String s : args) {
+        for (String s : filenames) {
             Resolution lab2 = new Resolution();
+            lab2.setOfSupport = setOfSupport;
+            lab2.stats = stats;
             lab2.input(s);
             lab2.resolve();
             lab2.output();
@@ -323,20 +357,828 @@ public class Resolution {
 }
 
 /**
- * an auxiliary class used as comparator for the list of literal for every clause
+ * an auxiliary class interning every symbol and term of a KB: symbols become int IDs and
+ * terms are hash-consed (two terms are equal if and only if they have the same ID), so
+ * unification and clause comparison only work on integers
+ *
+ * Every clause is standardized to the canonical variables v0, v1, ... in the order of their
+ * first occurrence. The two clauses of a resolution step are kept apart by a context bit
+ * (0 for one clause, 1 for the other), so a reference to a term is term ID << 1 | context
+ * and a variable is bound per context without building renamed copies of the clauses.
+ */
+class Terms {
+    /** the kinds of symbols */
+    static final byte PREDICATE = 0, FUNCTION = 1, CONSTANT = 2, VARIABLE = 3;
+
+    /** a map from every symbol's name to its ID */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    /** the name of every symbol */
+    private String[] names = new String[16];
+
+    /** the kind of every symbol */
+    private byte[] kinds = new byte[16];
+
+    /** the index of every canonical variable symbol (-1 for other symbols) */
+    private int[] index = new int[16];
+
+    /** the number of symbols */
+    private int symbols;
+
+    /** the symbol (predicate, function, constant, or variable) of every term */
+    private int[] functor = new int[64];
+
+    /** where the arguments of every term start in {@link #args} */
+    private int[] first = new int[64];
+
+    /** the number of arguments of every term */
+    private int[] arity = new int[64];
+
+    /** if every term contains no variable */
+    private boolean[] ground = new boolean[64];
+
+    /** the number of symbols in every term */
+    private int[] weight = new int[64];
+
+    /** the shape of every term (a hash of its structure in which every variable looks the same) */
+    private int[] shape = new int[64];
+
+    /** the number of terms */
+    private int count;
+
+    /** the arguments (term IDs) of all terms */
+    private int[] args = new int[64];
+
+    /** the number of used entries of {@link #args} */
+    private int argCount;
+
+    /** an open addressing hash table from a term's structure to its ID + 1 (0 for an empty slot) */
+    private int[] table = new int[128];
+
+    /** the term of every canonical variable */
+    private int[] canonical = new int[16];
+
+    /** the number of canonical variables */
+    private int canonicals;
+
+    /** the canonical variable index of every declared variable in the clause being parsed */
+    private final Map<Integer, Integer> naming = new HashMap<>();
+
+    /** the reference bound to every variable (canonical index << 1 | context; -1 if it is unbound) */
+    private int[] bindings = new int[32];
+
+    /** the variables bound since the last undo (the triangular substitution) */
+    private int[] trail = new int[32];
+
+    /** the number of variables on the trail */
+    private int trailSize;
+
+    /** the canonical variable of the resolvent every unbound variable is renamed to (-1 if none yet) */
+    private int[] renamed = new int[32];
+
+    /** the variables renamed since the last undo, in the order of their new indices */
+    private int[] renamedSlots = new int[32];
+
+    /** the number of renamed variables */
+    private int renames;
+
+    /** a stack for assembling arguments while parsing and substituting */
+    private int[] stack = new int[64];
+
+    /** the top of the stack */
+    private int top;
+
+    /** the literal being parsed */
+    private String text;
+
+    /** the position of the parser in the literal */
+    private int position;
+
+    /**
+     * The constructor initializes the variable tables.
+     */
+    public Terms() {
+        Arrays.fill(bindings, -1);
+        Arrays.fill(renamed, -1);
+    }
+
+    /**
+     * This method declares symbols of a kind listed in the header of a KB.
+     *
+     * @param names the names of the symbols
+     * @param kind  their kind
+     */
+    public void declare(List<String> names, byte kind) {
+        for (String name : names) symbol(name, kind);
+    }
+
+    /**
+     * This method returns the ID of a symbol, adding the symbol with the given kind if it is new.
+     *
+     * @param name the name of the symbol
+     * @param kind the kind of the symbol if it has not been declared
+     * @return the ID of the symbol
+     */
+    public int symbol(String name, byte kind) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        id = add(name, kind);
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * This method adds a symbol without registering its name.
+     *
+     * @param name the name of the symbol
+     * @param kind the kind of the symbol
+     * @return the ID of the symbol
+     */
+    private int add(String name, byte kind) {
+        if (symbols == names.length) {
+            names = Arrays.copyOf(names, symbols * 2);
+            kinds = Arrays.copyOf(kinds, symbols * 2);
+            index = Arrays.copyOf(index, symbols * 2);
+        }
+        names[symbols] = name;
+        kinds[symbols] = kind;
+        index[symbols] = -1;
+        return symbols++;
+    }
+
+    /**
+     * This method returns the term of a canonical variable, adding the variable if it is new.
+     *
+     * @param k the index of the variable
+     * @return the term ID of the variable
+     */
+    public int canonical(int k) {
+        while (canonicals <= k) {
+            int symbol = add("_" + canonicals, VARIABLE);
+            index[symbol] = canonicals;
+            if (canonicals == canonical.length) canonical = Arrays.copyOf(canonical, canonicals * 2);
+            canonical[canonicals++] = make(symbol, top);
+            if (2 * canonicals > bindings.length) {
+                int length = bindings.length;
+                bindings = Arrays.copyOf(bindings, length * 2);
+                renamed = Arrays.copyOf(renamed, length * 2);
+                trail = Arrays.copyOf(trail, length * 2);
+                renamedSlots = Arrays.copyOf(renamedSlots, length * 2);
+                Arrays.fill(bindings, length, length * 2, -1);
+                Arrays.fill(renamed, length, length * 2, -1);
+            }
+        }
+        return canonical[k];
+    }
+
+    /**
+     * This method starts a new clause, so its variables are standardized from v0 again.
+     */
+    public void clause() {
+        naming.clear();
+    }
+
+    /**
+     * This method parses a literal such as !loves(SKF0(x1),x2) once into its interned form.
+     *
+     * @param literal the literal
+     * @return the ID of its atom shifted left by one, with the lowest bit set if it is negated
+     */
+    public int literal(String literal) {
+        boolean negated = literal.charAt(0) == '!';
+        text = literal;
+        position = negated ? 1 : 0;
+        return parse(PREDICATE) << 1 | (negated ? 1 : 0);
+    }
+
+    /**
+     * This method parses one term at the current position of the literal.
+     *
+     * @param kind the kind of the term's symbol if it has not been declared
+     * @return the ID of the term
+     */
+    private int parse(byte kind) {
+        int start = position;
+        while (position < text.length() && "(),".indexOf(text.charAt(position)) < 0) position++;
+        int symbol = symbol(text.substring(start, position), kind);
+        if (kinds[symbol] == VARIABLE) {
+            Integer k = naming.get(symbol);
+            if (k == null) naming.put(symbol, k = naming.size());
+            return canonical(k);
+        }
+        int from = top;
+        if (position < text.length() && text.charAt(position) == '(') {
+            if (kinds[symbol] == CONSTANT) kinds[symbol] = FUNCTION;
+            do {
+                position++;
+                int argument = parse(CONSTANT);
+                push(argument);
+            } while (text.charAt(position) == ',');
+            position++;
+        }
+        int term = make(symbol, from);
+        top = from;
+        return term;
+    }
+
+    /**
+     * This method pushes a term ID onto the stack.
+     *
+     * @param term the term ID
+     */
+    private void push(int term) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+        stack[top++] = term;
+    }
+
+    /**
+     * This method returns the ID of the term whose arguments are on the stack from
+     * a position to the top, adding the term if it does not exist yet.
+     *
+     * @param symbol the symbol of the term
+     * @param from   where the arguments start on the stack
+     * @return the ID of the term
+     */
+    private int make(int symbol, int from) {
+        int n = top - from;
+        int hash = symbol * 0x9E3779B1;
+        for (int i = from; i < top; i++) hash = (hash ^ stack[i]) * 0x9E3779B1;
+        int mask = table.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        for (int id; (id = table[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+            if (functor[id] == symbol && arity[id] == n
+                    && Arrays.equals(args, first[id], first[id] + n, stack, from, top)) {
+                return id;
+            }
+        }
+
+        // a new term
+        if (count == functor.length) {
+            functor = Arrays.copyOf(functor, count * 2);
+            first = Arrays.copyOf(first, count * 2);
+            arity = Arrays.copyOf(arity, count * 2);
+            ground = Arrays.copyOf(ground, count * 2);
+            weight = Arrays.copyOf(weight, count * 2);
+            shape = Arrays.copyOf(shape, count * 2);
+        }
+        if (argCount + n > args.length) args = Arrays.copyOf(args, Math.max(args.length * 2, argCount + n));
+        System.arraycopy(stack, from, args, argCount, n);
+        boolean noVariable = kinds[symbol] != VARIABLE;
+        int symbolCount = 1;
+        int structure = noVariable ? symbol * 0x9E3779B1 : VARIABLE;
+        for (int i = from; i < top; i++) {
+            noVariable &= ground[stack[i]];
+            symbolCount += weight[stack[i]];
+            structure = (structure ^ shape[stack[i]]) * 0x9E3779B1;
+        }
+        functor[count] = symbol;
+        first[count] = argCount;
+        arity[count] = n;
+        ground[count] = noVariable;
+        weight[count] = symbolCount;
+        shape[count] = structure;
+        argCount += n;
+        table[slot] = count + 1;
+        if (2 * (count + 1) > table.length) rehash();
+        return count++;
+    }
+
+    /**
+     * This method doubles the hash table and reinserts every term.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id <= count; id++) {
+            int hash = functor[id] * 0x9E3779B1;
+            for (int i = first[id]; i < first[id] + arity[id]; i++) hash = (hash ^ args[i]) * 0x9E3779B1;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * This method checks if a term is a variable.
+     *
+     * @param term the term ID
+     * @return if the term is a variable
+     */
+    public boolean isVariable(int term) {
+        return kinds[functor[term]] == VARIABLE;
+    }
+
+    /**
+     * This method returns the number of symbols in a term.
+     *
+     * @param term the term ID
+     * @return its weight
+     */
+    public int weight(int term) {
+        return weight[term];
+    }
+
+    /**
+     * This method returns the symbol of a term.
+     *
+     * @param term the term ID
+     * @return its symbol
+     */
+    public int functor(int term) {
+        return functor[term];
+    }
+
+    /**
+     * This method returns the shape of a term, which is the same for two terms
+     * that only differ in their variables.
+     *
+     * @param term the term ID
+     * @return its shape
+     */
+    public int shape(int term) {
+        return shape[term];
+    }
+
+    /**
+     * This method returns the binding slot of a variable reference.
+     *
+     * @param reference the variable term ID << 1 | context
+     * @return its index in the binding tables
+     */
+    private int slot(int reference) {
+        return index[functor[reference >>> 1]] << 1 | (reference & 1);
+    }
+
+    /**
+     * This method follows the bindings of a reference until it reaches a non-variable
+     * term or an unbound variable.
+     *
+     * @param reference the term ID << 1 | context
+     * @return the dereferenced reference
+     */
+    private int deref(int reference) {
+        while (isVariable(reference >>> 1)) {
+            int bound = bindings[slot(reference)];
+            if (bound < 0) break;
+            reference = bound;
+        }
+        return reference;
+    }
+
+    /**
+     * This method unifies two terms in different contexts and records the bindings
+     * on the trail until {@link #undo()} is called.
+     *
+     * @param term1    one term
+     * @param context1 the context of its variables
+     * @param term2    the other term
+     * @param context2 the context of its variables
+     * @return if the two terms can be unified
+     */
+    public boolean unify(int term1, int context1, int term2, int context2) {
+        return unify(term1 << 1 | context1, term2 << 1 | context2);
+    }
+
+    /**
+     * This method unifies two references.
+     *
+     * @param reference1 one reference
+     * @param reference2 the other reference
+     * @return if the two references can be unified
+     */
+    private boolean unify(int reference1, int reference2) {
+        reference1 = deref(reference1);
+        reference2 = deref(reference2);
+        int term1 = reference1 >>> 1, term2 = reference2 >>> 1;
+        if (reference1 == reference2 || term1 == term2 && ground[term1]) return true;
+        if (isVariable(term1)) return bind(reference1, reference2);
+        if (isVariable(term2)) return bind(reference2, reference1);
+        int n = arity[term1];
+        if (functor[term1] != functor[term2] || n != arity[term2]) return false;
+        for (int i = 0; i < n; i++) {
+            if (!unify(args[first[term1] + i] << 1 | (reference1 & 1),
+                    args[first[term2] + i] << 1 | (reference2 & 1))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method binds an unbound variable to a reference unless the variable occurs in it.
+     *
+     * @param variable  the variable reference
+     * @param reference the reference
+     * @return if the variable was bound
+     */
+    private boolean bind(int variable, int reference) {
+        if (occurs(variable, reference)) return false;
+        int slot = slot(variable);
+        trail[trailSize++] = slot;
+        bindings[slot] = reference;
+        return true;
+    }
+
+    /**
+     * This method checks if a variable occurs in a reference under the current bindings.
+     *
+     * @param variable  the variable reference
+     * @param reference the reference
+     * @return if the variable occurs in it
+     */
+    private boolean occurs(int variable, int reference) {
+        reference = deref(reference);
+        int term = reference >>> 1;
+        if (reference == variable) return true;
+        if (ground[term] || isVariable(term)) return false;
+        for (int i = first[term]; i < first[term] + arity[term]; i++) {
+            if (occurs(variable, args[i] << 1 | (reference & 1))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * This method matches a term (its variables in context 0) against another term whose
+     * variables are kept fixed, and records the bindings on the trail.
+     *
+     * @param pattern the more general term
+     * @param target  the term that may be an instance of it
+     * @return if a substitution of the pattern's variables makes it the target
+     */
+    public boolean match(int pattern, int target) {
+        if (ground[pattern]) return pattern == target;
+        if (isVariable(pattern)) {
+            int slot = slot(pattern << 1);
+            if (bindings[slot] >= 0) return bindings[slot] == (target << 1 | 1);
+            trail[trailSize++] = slot;
+            bindings[slot] = target << 1 | 1;
+            return true;
+        }
+        int n = arity[pattern];
+        if (functor[pattern] != functor[target] || n != arity[target]) return false;
+        for (int i = 0; i < n; i++) {
+            if (!match(args[first[pattern] + i], args[first[target] + i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method returns the current size of the trail.
+     *
+     * @return a mark to undo the bindings recorded after it
+     */
+    public int mark() {
+        return trailSize;
+    }
+
+    /**
+     * This method removes the bindings recorded since a mark.
+     *
+     * @param mark the mark
+     */
+    public void undo(int mark) {
+        while (trailSize > mark) bindings[trail[--trailSize]] = -1;
+    }
+
+    /**
+     * This method removes every binding and renaming recorded since the last undo.
+     */
+    public void undo() {
+        undo(0);
+        while (renames > 0) renamed[renamedSlots[--renames]] = -1;
+    }
+
+    /**
+     * This method applies the bindings to a literal and renames its remaining variables to
+     * the canonical variables of the resolvent (shared by every literal until the next undo).
+     *
+     * @param literal the literal
+     * @param context the context of its variables
+     * @return the literal after the substitution
+     */
+    public int substitute(int literal, int context) {
+        return apply(literal >>> 1 << 1 | context) << 1 | (literal & 1);
+    }
+
+    /**
+     * This method applies the bindings to a reference.
+     *
+     * @param reference the reference
+     * @return the term after the substitution
+     */
+    private int apply(int reference) {
+        reference = deref(reference);
+        int term = reference >>> 1;
+        if (ground[term]) return term;
+        if (isVariable(term)) {
+            int slot = slot(reference);
+            if (renamed[slot] < 0) {
+                renamed[slot] = renames;
+                renamedSlots[renames++] = slot;
+            }
+            return canonical(renamed[slot]);
+        }
+        int from = top;
+        for (int i = first[term]; i < first[term] + arity[term]; i++) {
+            push(apply(args[i] << 1 | (reference & 1)));
+        }
+        int result = make(functor[term], from);
+        top = from;
+        return result;
+    }
+}
+
+/**
+ * an auxiliary class storing the clauses of a KB by a 64-bit structural hash of their
+ * canonical form, so a duplicate or a variant (the same clause up to the names of its
+ * variables) of an existing clause is detected in O(1)
+ *
+ * The canonical form of a clause sorts its literals by their shape (a hash that ignores
+ * which variable is which), drops repeated literals, and then renames the variables in
+ * the order of their first occurrence. Literals of the same shape are ordered by their
+ * IDs, so a variant whose literals only differ in such a tie might not be detected.
  */
-class SortLiteral implements Comparator<String> {
+class ClauseStore {
+    /** the interned terms of the KB */
+    private final Terms terms;
+
+    /** the list of stored clauses (shared with the owner) */
+    private final List<int[]> clauses;
+
+    /** an open addressing hash table from a clause's hash to its index + 1 (0 for an empty slot) */
+    private int[] table = new int[64];
+
+    /** the hash of the clause in every slot of the table */
+    private long[] hashes = new long[64];
+
+    /** an auxiliary buffer for sorting literals by shape << 32 | literal */
+    private long[] keys = new long[16];
+
+    /** the number of clauses discarded as duplicates or variants */
+    public int discarded;
+
     /**
-     * This method compares two String objects (literals) and decides their order.
+     * The constructor initializes the store.
      *
-     * @param o1 one String (literal)
-     * @param o2 the other String (literal)
-     * @return their orders
+     * @param terms   the interned terms of the KB
+     * @param clauses the list to store the clauses in
      */
-    @Override
-    public int compare(String o1, String o2) {
-        if (o1.charAt(0) == '!') o1 = o1.substring(1);
-        if (o2.charAt(0) == '!') o2 = o2.substring(1);
-        return o1.compareTo(o2);
+    public ClauseStore(Terms terms, List<int[]> clauses) {
+        this.terms = terms;
+        this.clauses = clauses;
     }
-}
\ No newline at end of file
+
+    /**
+     * This method turns the first literals in a buffer into a new clause in canonical form.
+     * No variable may be bound when it is called.
+     *
+     * @param buffer the buffer holding the literals
+     * @param size   the number of literals in the buffer
+     * @return the canonical clause
+     */
+    public int[] canonical(int[] buffer, int size) {
+        if (keys.length < size) keys = new long[2 * size];
+        for (int i = 0; i < size; i++) {
+            int shape = terms.shape(buffer[i] >>> 1) * 31 + (buffer[i] & 1);
+            keys[i] = (long) shape << 32 | (buffer[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(keys, 0, size);
+
+        // drop repeated literals (they are next to each other) and rename the variables
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) unique++;
+        }
+        int[] clause = new int[unique];
+        unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) clause[unique++] = terms.substitute((int) keys[i], 0);
+        }
+        terms.undo();
+        return clause;
+    }
+
+    /**
+     * This method adds a canonical clause unless it is a duplicate or a variant of a stored one.
+     *
+     * @param clause the canonical clause
+     * @return if the clause was added
+     */
+    public boolean add(int[] clause) {
+        long hash = hash(clause);
+        int mask = table.length - 1;
+        int slot = (int) (hash ^ hash >>> 32) & mask;
+        for (int index; (index = table[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && Arrays.equals(clauses.get(index), clause)) {
+                discarded++;
+                return false;
+            }
+        }
+        clauses.add(clause);
+        table[slot] = clauses.size();
+        hashes[slot] = hash;
+        if (2 * clauses.size() > table.length) rehash();
+        return true;
+    }
+
+    /**
+     * This method doubles the hash table and reinserts every clause.
+     */
+    private void rehash() {
+        int[] oldTable = table;
+        long[] oldHashes = hashes;
+        table = new int[oldTable.length * 2];
+        hashes = new long[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] == 0) continue;
+            int slot = (int) (oldHashes[i] ^ oldHashes[i] >>> 32) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = oldTable[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+
+    /**
+     * This method computes the 64-bit hash of a canonical clause. Interned literals
+     * are equal only if they are identical, so the hash of their IDs is structural.
+     *
+     * @param clause the canonical clause
+     * @return its hash
+     */
+    public static long hash(int[] clause) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (int literal : clause) {
+            hash = (hash ^ literal) * 0xBF58476D1CE4E5B9L;
+            hash ^= hash >>> 31;
+        }
+        return hash;
+    }
+}
+
+/**
+ * an auxiliary class indexing clauses by their feature vectors (the number of literals of every
+ * predicate and sign) in a trie, so the candidates for subsumption are found without visiting
+ * every clause: a clause can only subsume another one (mapping its literals to distinct literals)
+ * if none of its features is larger
+ */
+class FeatureIndex {
+    /** the interned terms of the KB */
+    private final Terms terms;
+
+    /** the feature of every positive literal of every predicate (-1 for other symbols) */
+    private final int[] feature;
+
+    /** the number of features (two per predicate) */
+    private final int features;
+
+    /** the root of the trie (the nodes of depth d branch on feature d) */
+    private final Node root = new Node();
+
+    /** an auxiliary buffer holding the feature vector of a clause */
+    private final int[] vector;
+
+    /**
+     * a node of the trie
+     */
+    static class Node {
+        /** the value of the feature of every child */
+        int[] values = new int[0];
+
+        /** the children */
+        Node[] children = new Node[0];
+
+        /** the indices of the clauses ending at this node (leaves only) */
+        List<Integer> clauses = new ArrayList<>();
+    }
+
+    /**
+     * The constructor collects the predicates of the input clauses (resolvents use no other ones).
+     *
+     * @param terms   the interned terms of the KB
+     * @param clauses the input clauses
+     */
+    public FeatureIndex(Terms terms, List<int[]> clauses) {
+        this.terms = terms;
+        int symbols = 0;
+        for (int[] clause : clauses) {
+            for (int literal : clause) symbols = Math.max(symbols, terms.functor(literal >>> 1) + 1);
+        }
+        feature = new int[symbols];
+        Arrays.fill(feature, -1);
+        int count = 0;
+        for (int[] clause : clauses) {
+            for (int literal : clause) {
+                int symbol = terms.functor(literal >>> 1);
+                if (feature[symbol] < 0) {
+                    feature[symbol] = count;
+                    count += 2;
+                }
+            }
+        }
+        features = count;
+        vector = new int[count];
+    }
+
+    /**
+     * This method fills the feature vector of a clause.
+     *
+     * @param clause the clause
+     */
+    private void fill(int[] clause) {
+        Arrays.fill(vector, 0);
+        for (int literal : clause) vector[feature[terms.functor(literal >>> 1)] + (literal & 1)]++;
+    }
+
+    /**
+     * This method adds a clause to the index.
+     *
+     * @param index  index of the clause
+     * @param clause the clause
+     */
+    public void add(int index, int[] clause) {
+        fill(clause);
+        Node node = root;
+        for (int d = 0; d < features; d++) {
+            int i = 0;
+            while (i < node.values.length && node.values[i] != vector[d]) i++;
+            if (i == node.values.length) {
+                node.values = Arrays.copyOf(node.values, i + 1);
+                node.children = Arrays.copyOf(node.children, i + 1);
+                node.values[i] = vector[d];
+                node.children[i] = new Node();
+            }
+            node = node.children[i];
+        }
+        node.clauses.add(index);
+    }
+
+    /**
+     * This method removes a clause from the index.
+     *
+     * @param index  index of the clause
+     * @param clause the clause
+     */
+    public void remove(int index, int[] clause) {
+        fill(clause);
+        Node node = root;
+        for (int d = 0; d < features; d++) {
+            int i = 0;
+            while (node.values[i] != vector[d]) i++;
+            node = node.children[i];
+        }
+        node.clauses.remove(Integer.valueOf(index));
+    }
+
+    /**
+     * This method checks if any indexed clause whose features are not larger than a clause's passes a test.
+     *
+     * @param clause the clause
+     * @param test   the test (if the candidate subsumes the clause)
+     * @return if a candidate passes the test
+     */
+    public boolean anyGeneralization(int[] clause, IntPredicate test) {
+        fill(clause);
+        return search(root, 0, true, test);
+    }
+
+    /**
+     * This method collects the indexed clauses whose features are not smaller than a clause's and pass a test.
+     *
+     * @param clause the clause
+     * @param test   the test (if the clause subsumes the candidate)
+     * @return the indices of the candidates passing the test
+     */
+    public List<Integer> instances(int[] clause, IntPredicate test) {
+        fill(clause);
+        List<Integer> result = new ArrayList<>();
+        search(root, 0, false, candidate -> {
+            if (test.test(candidate)) result.add(candidate);
+            return false;
+        });
+        return result;
+    }
+
+    /**
+     * This method visits the clauses below a node whose remaining features are all not larger
+     * (or all not smaller) than the ones in the buffer until the visitor asks to stop.
+     *
+     * @param node            the node
+     * @param depth           the depth of the node
+     * @param generalizations if the features of the visited clauses must be not larger
+     * @param visitor         the visitor
+     * @return if the visitor asked to stop
+     */
+    private boolean search(Node node, int depth, boolean generalizations, IntPredicate visitor) {
+        if (depth == features) {
+            for (int i = 0; i < node.clauses.size(); i++) {
+                if (visitor.test(node.clauses.get(i))) return true;
+            }
+            return false;
+        }
+        for (int i = 0; i < node.values.length; i++) {
+            if (generalizations ? node.values[i] <= vector[depth] : node.values[i] >= vector[depth]) {
+                if (search(node.children[i], depth + 1, generalizations, visitor)) return true;
+            }
+        }
+        return false;
+    }
+}